@@ -1,16 +1,24 @@
 package com.briplatform.clientama;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Scanner;
+import java.util.function.Consumer;
+import java.util.zip.InflaterInputStream;
 
 /**
  * The clientama.Main class is a basic client which reads from a socket and 
  * writes an answer until the connection is ended by the server or the client
- * is closed. It connects on {@link #IPv4} to {@link #PORT}.
+ * is closed. It connects on {@link #IPv4} to {@link #PORT}, and asks the
+ * server to compress its longest messages.
  * 
  * @author Lucas Pinard
  */
@@ -21,17 +29,31 @@ public class Main {
 	
 	/** Connection port. */
 	private static final int PORT = 7600;
+	
+	/** Line asking for compression, and prefix of the compressed lines. */
+	private static final String DEFLATE = "$$DEFLATE$$";
+
+	/** Mark following {@link #DEFLATE} in a line sent uncompressed. */
+	private static final String ESCAPE = "!";
+
+	/** Suffix of the lines streamed before an answer. */
+	private static final String MORE = "$$MORE$$";
 
 	public static void main(String[] args) {
 		Socket server = null;
 		Scanner r = null;
 		try {
 			server = new Socket(IPv4, PORT);
-			BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream()));
-			PrintWriter out = new PrintWriter(server.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					server.getInputStream(), StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					server.getOutputStream(), StandardCharsets.UTF_8), true);
 			r = new Scanner(System.in);
+			out.println(DEFLATE);
 			do {
-				String line = in.readLine();
+				String line = readAnswer(in, l -> System.out.println(
+						l.replace("$$NEWLINE$$", System.lineSeparator())
+						));
 				if (line == null) break;
 				line = line.replace("$$NEWLINE$$", System.lineSeparator());
 				System.out.println(line);
@@ -47,4 +69,42 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Reads the next answer of the server, handing over the streamed lines
+	 * which precede it as they arrive.
+	 * @param in the reader of the server socket.
+	 * @param streamed the consumer of the streamed lines.
+	 * @return the answer, or {@code null} if the connection ended.
+	 * @throws IOException if the connection failed.
+	 */
+	private static String readAnswer(BufferedReader in,
+			Consumer<String> streamed) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = decode(line);
+			if (!line.endsWith(MORE)) return line;
+			streamed.accept(line.substring(0, line.length() - MORE.length()));
+		}
+		return null;
+	}
+
+	/**
+	 * Decompresses a line sent by the server, if it is compressed, or removes
+	 * its escape if it was sent as is while starting like {@link #DEFLATE}.
+	 * @param line the line received.
+	 * @return the decompressed line.
+	 * @throws IOException if the compressed line is corrupted.
+	 */
+	private static String decode(String line) throws IOException {
+		if (!line.startsWith(DEFLATE)) return line;
+		String encoded = line.substring(DEFLATE.length());
+		if (encoded.startsWith(ESCAPE)) return encoded.substring(ESCAPE.length());
+		try (InputStream i = new InflaterInputStream(new ByteArrayInputStream(
+				Base64.getDecoder().decode(encoded)))) {
+			return new String(i.readAllBytes(), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupted line", e);
+		}
+	}
+
 }
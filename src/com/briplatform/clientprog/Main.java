@@ -1,16 +1,31 @@
 package com.briplatform.clientprog;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Deque;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.InflaterInputStream;
 
 /**
  * The clientprog.Main class is a basic client which reads from a socket and 
  * writes an answer until the connection is ended by the server or the client
- * is closed. It connects on {@link #IPv4} to {@link #PORT}.
+ * is closed. It connects on {@link #IPv4} to {@link #PORT}, and asks the
+ * server to compress its longest messages.
+ * <p>
+ * Given a script, it runs in batch mode instead: see {@link #batch(String)}.
  * 
  * @author Lucas Pinard
  */
@@ -21,17 +36,48 @@ public class Main {
 	
 	/** Connection port. */
 	private static final int PORT = 7500;
+	
+	/** Line asking for compression, and prefix of the compressed lines. */
+	private static final String DEFLATE = "$$DEFLATE$$";
+
+	/** Mark following {@link #DEFLATE} in a line sent uncompressed. */
+	private static final String ESCAPE = "!";
+
+	/** Suffix of the lines streamed before an answer. */
+	private static final String MORE = "$$MORE$$";
+
+	/** Prompt ending each answer of the server to a command. */
+	private static final String PROMPT = "$$NEWLINE$$>> ";
+
+	/** Number of commands a batch may send ahead of their answers. */
+	private static final int WINDOW = 32;
+
+	/** Commands which succeed only if the server answers "Success". */
+	private static final Set<String> MUTATIONS 
+		= Set.of("changeftp", "add", "on", "off", "update", "rem");
+
+	/** Exit code of a batch in which a command failed. */
+	private static final int EXIT_FAILED = 1;
+
+	/** Exit code of a batch which could not log in or lost the connection. */
+	private static final int EXIT_ERROR = 2;
 
 	public static void main(String[] args) {
+		if (args.length > 0) System.exit(batch(args[0]));
 		Socket server = null;
 		Scanner r = null;
 		try {
 			server = new Socket(IPv4, PORT);
-			BufferedReader in = new BufferedReader(new InputStreamReader(server.getInputStream()));
-			PrintWriter out = new PrintWriter(server.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					server.getInputStream(), StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					server.getOutputStream(), StandardCharsets.UTF_8), true);
 			r = new Scanner(System.in);
+			out.println(DEFLATE);
 			do {
-				System.out.print(in.readLine().replace("$$NEWLINE$$", System.lineSeparator()));
+				System.out.print(readAnswer(in, l -> System.out.println(
+						l.replace("$$NEWLINE$$", System.lineSeparator())
+						)).replace("$$NEWLINE$$", System.lineSeparator()));
 				out.println(r.nextLine().replace(System.lineSeparator(), "$$NEWLINE$$"));
 			} while (true);
 		} catch (@SuppressWarnings("unused") NullPointerException | IOException e) {
@@ -44,4 +90,153 @@ public class Main {
 		}
 	}
 
+	/**
+	 * Runs a script of commands without interaction, then ends the
+	 * connection. The first two lines of the script are the username and the
+	 * password, and each of the next lines is a command, blank lines and
+	 * lines starting with # being skipped. The script is read from the
+	 * standard input if its path is "-".
+	 * <p>
+	 * The server answers each command with exactly one line, so the commands
+	 * are sent up to {@link #WINDOW} ahead of their answers rather than one
+	 * round trip at a time. A line is printed for each command, with its
+	 * result and the time the server took to answer it, from its sending or
+	 * the previous answer, whichever came last. It is followed by the answer
+	 * if the command failed or is not one of the {@link #MUTATIONS}.
+	 * <p>
+	 * A failed command does not stop the batch: the commands following it
+	 * were already sent by then, and are run regardless, even those which
+	 * depend on it. Scripts whose commands depend on each other should
+	 * rather be split.
+	 * @param script the path of the script.
+	 * @return 0 if every command succeeded, {@link #EXIT_FAILED} if a command
+	 * failed, {@link #EXIT_ERROR} if the batch could not be run to its end.
+	 */
+	private static int batch(String script) {
+		Deque<String> commands = new ArrayDeque<>();
+		try {
+			commands.addAll(script.equals("-") 
+					? new BufferedReader(new InputStreamReader(System.in))
+					.lines().toList()
+					: Files.readAllLines(Paths.get(script)));
+		} catch (IOException e) {
+			System.err.println("Cannot read " + script + " : " + e.getMessage());
+			return EXIT_ERROR;
+		}
+		if (commands.size() < 2) {
+			System.err.println("The script should start with a username and a password");
+			return EXIT_ERROR;
+		}
+
+		try (Socket server = new Socket(IPv4, PORT)) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					server.getInputStream(), StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					server.getOutputStream(), StandardCharsets.UTF_8), true);
+			out.println(DEFLATE);
+			in.readLine();
+			out.println(commands.poll());
+			in.readLine();
+			out.println(commands.poll());
+			String login = decode(in.readLine());
+			if (!login.endsWith(PROMPT)) {
+				System.err.println("Login failed");
+				return EXIT_ERROR;
+			}
+
+			// Commands waiting for their answer, with the time they were sent
+			Deque<String> sent = new ArrayDeque<>();
+			Deque<Long> times = new ArrayDeque<>();
+			long answered = System.nanoTime();
+			int failed = 0, total = 0;
+			while (!commands.isEmpty() || !sent.isEmpty()) {
+				while (sent.size() < WINDOW && !commands.isEmpty()) {
+					String command = commands.poll().strip();
+					if (command.isEmpty() || command.startsWith("#")) continue;
+					if (command.equals("close")) {
+						commands.clear();
+						break;
+					}
+					out.println(command);
+					sent.add(command);
+					times.add(System.nanoTime());
+				}
+				if (sent.isEmpty()) break;
+
+				StringBuilder streamed = new StringBuilder();
+				String answer = readAnswer(in,
+						l -> streamed.append(l).append("$$NEWLINE$$")
+						);
+				if (answer == null) {
+					System.err.println("Connection ended");
+					return EXIT_ERROR;
+				}
+				answer = streamed + answer;
+				if (answer.endsWith(PROMPT)) {
+					answer = answer.substring(0, answer.length() - PROMPT.length());
+				}
+				String command = sent.poll();
+				// a command waits for the previous answers before being run
+				long start = Math.max(times.poll(), answered);
+				answered = System.nanoTime();
+				long ms = (answered - start) / 1_000_000L;
+				String name = command.split(" ")[0];
+				boolean mutation = MUTATIONS.contains(name);
+				boolean ok = mutation ? answer.startsWith("Success")
+						: !answer.equals("unknown command") 
+						&& !answer.equals("Invalid syntax");
+				total++;
+				if (!ok) failed++;
+				System.out.printf("%-4s %6d ms  %s%n", ok ? "ok" : "FAIL", ms, command);
+				if (!ok || !mutation) {
+					System.out.println(answer.replace("$$NEWLINE$$", System.lineSeparator()));
+				}
+			}
+			out.println("close");
+			System.out.printf("%d command(s), %d failed%n", total, failed);
+			return failed == 0 ? 0 : EXIT_FAILED;
+		} catch (@SuppressWarnings("unused") NullPointerException | IOException e) {
+			System.err.println("Connection ended");
+			return EXIT_ERROR;
+		}
+	}
+
+	/**
+	 * Reads the next answer of the server, handing over the streamed lines
+	 * which precede it as they arrive.
+	 * @param in the reader of the server socket.
+	 * @param streamed the consumer of the streamed lines.
+	 * @return the answer, or {@code null} if the connection ended.
+	 * @throws IOException if the connection failed.
+	 */
+	private static String readAnswer(BufferedReader in,
+			Consumer<String> streamed) throws IOException {
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = decode(line);
+			if (!line.endsWith(MORE)) return line;
+			streamed.accept(line.substring(0, line.length() - MORE.length()));
+		}
+		return null;
+	}
+
+	/**
+	 * Decompresses a line sent by the server, if it is compressed, or removes
+	 * its escape if it was sent as is while starting like {@link #DEFLATE}.
+	 * @param line the line received.
+	 * @return the decompressed line.
+	 * @throws IOException if the compressed line is corrupted.
+	 */
+	private static String decode(String line) throws IOException {
+		if (!line.startsWith(DEFLATE)) return line;
+		String encoded = line.substring(DEFLATE.length());
+		if (encoded.startsWith(ESCAPE)) return encoded.substring(ESCAPE.length());
+		try (InputStream i = new InflaterInputStream(new ByteArrayInputStream(
+				Base64.getDecoder().decode(encoded)))) {
+			return new String(i.readAllBytes(), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupted line", e);
+		}
+	}
+
 }
@@ -0,0 +1,29 @@
+package com.briplatform.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of a connection accepted by a
+ * {@link ConnectionListener}, lasting until its service is instantiated.
+ *
+ * @author Lucas Pinard
+ */
+@Name("com.briplatform.Accept")
+@Label("Connection Accepted")
+@Category("BRiPlatform")
+@Description("A connection accepted by a listener")
+class AcceptEvent extends jdk.jfr.Event {
+
+	@Label("Port")
+	int port;
+
+	@Label("Client Address")
+	String clientAddress;
+
+	@Label("Admitted")
+	@Description("Whether the connection respected the listener policy")
+	boolean admitted;
+}
@@ -3,12 +3,15 @@ package com.briplatform.server;
 import java.io.IOException;
 import java.net.Socket;
 
+import com.briplatform.server.resources.AsyncBRiService;
 import com.briplatform.server.resources.BRiService;
+import com.briplatform.server.resources.Cacheable;
 import com.briplatform.server.resources.Registry;
 
 /**
  * This class is the amateur service which the programmer client app
- * connects to.
+ * connects to. A client may also answer with {@link Multiplexer#TOKEN} to
+ * carry several amateur sessions over its connection.
  * 
  * @author Lucas Pinard
  */
@@ -24,18 +27,39 @@ public class AmatService extends BRiService {
 		try {
 			write(Registry.getInstance().getServiceList());
 			String line = read();
+			if (Multiplexer.TOKEN.equals(line) 
+					&& !(getClient() instanceof MuxChannel)) {
+				handOff(new Multiplexer(getClient()));
+				return;
+			}
+			DispatchEvent event = new DispatchEvent();
+			event.begin();
+			event.service = line;
+			event.clientAddress = getClientAddress();
 			Class<? extends BRiService> service
 				= Registry.getInstance().getService(line);
 			
 			if (service == null) {
+				event.commit();
 				write("Service not found");
 				finish();
 				return;
 			}
+			event.found = true;
+			event.async = AsyncBRiService.class.isAssignableFrom(service);
+			event.cacheable = service.isAnnotationPresent(Cacheable.class);
+			event.commit();
+			
+			if (event.async && getClient().getChannel() == null) {
+				write("Service unavailable on a multiplexed connection");
+				finish();
+				return;
+			}
 			
-			BRiService s = service.getConstructor(Socket.class)
-					.newInstance(getClient());
-			s.start();
+			// Blocking and asynchronous services are started alike, the latter
+			// being run on the shared selector thread instead of a new one,
+			// while cacheable ones may be answered without being instantiated.
+			dispatch(service);
 		} catch (@SuppressWarnings("unused") IOException e) {
 			System.err.println("Connection ended with " + getClientAddress());
 		} catch (Exception e) {
@@ -1,57 +1,352 @@
 package com.briplatform.server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.Constructor;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.briplatform.server.resources.BRiService;
+import com.briplatform.server.resources.SessionScheduler;
 
 /**
- * The ConnectionListener class opens a ServerSocket on a given port and
- * initiates a given service for each connection.
- * 
+ * The ConnectionListener class opens a ServerSocketChannel on a given port and
+ * initiates a given service for each connection. Accepted sockets are backed
+ * by a channel, so that {@link com.briplatform.server.resources.AsyncBRiService
+ * asynchronous services} can switch them to non-blocking mode.
+ * <p>
+ * Connections are first checked against a {@link ConnectionPolicy}: those
+ * exceeding the rate of their address or the concurrent connection limits
+ * are reset right away, before any service is instantiated. The channels of
+ * a {@link Multiplexer multiplexed connection} are checked the same way.
+ * <p>
+ * The sessions are run by a {@link SessionScheduler} bound to the port,
+ * which reserves them threads of their own at their own priority. While it
+ * is full, new connections are reset right away as well.
+ * <p>
+ * A listener can be {@link #stop() stopped}, then {@link #drain(long)
+ * drained} of its in-flight sessions. If its policy allows it, the port is
+ * bound with {@code SO_REUSEPORT}, so that a new server process can listen
+ * on it before this one stops: the connections are then spread between
+ * both, and those queued on this one are still served once it stops. A
+ * connection queued on this one while it is closing may yet be reset: the
+ * kernel offers no way to hand it over.
+ *
  * @author Lucas Pinard
  */
 public class ConnectionListener implements Runnable {
 
-	/** The ServerSocket listening. */
-	private ServerSocket skt;
+	/** Number of addresses above which idle rate limiters are forgotten. */
+	private static final int MAX_TRACKED_ADDRESSES = 4096;
+
+	/** Delay after which the accept loop checks whether it was stopped. */
+	private static final int ACCEPT_TIMEOUT = 250;
+
+	/** Pause before checking again for connections queued, once stopped. */
+	private static final int SWEEP_PAUSE = 50;
+
+	/** <i>Thread-safe. </i>Maps the listeners to the port they listen to. */
+	private static final Map<Integer, ConnectionListener> bound
+		= new ConcurrentHashMap<>();
+
+	/** The ServerSocketChannel listening. */
+	private ServerSocketChannel skt;
 
 	/** The service to initiate for each connection. */
 	private Class<? extends BRiService> bindedService;
-	
+
+	/** The constructor of {@link #bindedService}, looked up once. */
+	private Constructor<? extends BRiService> constructor;
+
+	/** The limits enforced on incoming connections. */
+	private ConnectionPolicy policy;
+
+	/** The scheduler running the sessions. */
+	private SessionScheduler scheduler;
+
+	/** <i>Thread-safe. </i>Sockets of the accepted connections. */
+	private Set<Socket> sessions = ConcurrentHashMap.newKeySet();
+
+	/** Maps the connection rate limiters to their address. */
+	private Map<InetAddress, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+	/** <i>Thread-safe. </i>Maps the number of sessions to their address. */
+	private Map<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+
+	/** Number of sessions in flight. */
+	private AtomicInteger total = new AtomicInteger();
+
+	/** Whether new connections are still accepted. */
+	private volatile boolean accepting = true;
+
+	/** The thread running the accept loop. */
+	private Thread acceptor;
+
 	/**
-	 * Constructs a new ConnectionListener listening on given port and 
-	 * binded to given service and runs it in a new Thread.
+	 * Constructs a new ConnectionListener listening on given port and
+	 * binded to given service and runs it in a new Thread, using the
+	 * {@link ConnectionPolicy#DEFAULT default policy}.
 	 * @param port the port to listen to.
 	 * @param bind  the service to initiate for each connection.
 	 */
 	public ConnectionListener(int port, Class<? extends BRiService> bind) {
+		this(port, bind, ConnectionPolicy.DEFAULT);
+	}
+
+	/**
+	 * Constructs a new ConnectionListener listening on given port and
+	 * binded to given service and runs it in a new Thread, using the
+	 * {@link SessionScheduler#DEFAULT default scheduler}.
+	 * @param port the port to listen to.
+	 * @param bind  the service to initiate for each connection.
+	 * @param policy the limits enforced on incoming connections.
+	 */
+	public ConnectionListener(int port, Class<? extends BRiService> bind,
+			ConnectionPolicy policy) {
+		this(port, bind, policy, SessionScheduler.DEFAULT);
+	}
+
+	/**
+	 * Constructs a new ConnectionListener listening on given port and
+	 * binded to given service and runs it in a new Thread, at the priority
+	 * of the given scheduler.
+	 * @param port the port to listen to.
+	 * @param bind  the service to initiate for each connection.
+	 * @param policy the limits enforced on incoming connections.
+	 * @param scheduler the scheduler running the sessions.
+	 */
+	public ConnectionListener(int port, Class<? extends BRiService> bind,
+			ConnectionPolicy policy, SessionScheduler scheduler) {
 		try {
-			this.skt = new ServerSocket(port);
-		} catch (IOException e) {
+			this.skt = ServerSocketChannel.open();
+			if (policy.isReusePort() && skt.supportedOptions()
+					.contains(StandardSocketOptions.SO_REUSEPORT)) {
+				skt.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+			this.skt.bind(new InetSocketAddress(port), policy.getBacklog());
+			this.skt.socket().setSoTimeout(ACCEPT_TIMEOUT);
+			this.constructor = bind.getConstructor(Socket.class);
+		} catch (IOException | NoSuchMethodException e) {
 			throw new RuntimeException("Failed to init serversocket", e);
 		}
-		
+
 		this.bindedService = bind;
-		
-		new Thread(this).start();
+		this.policy = policy;
+		this.scheduler = scheduler;
+		scheduler.bind(port);
+		bound.put(port, this);
+
+		this.acceptor = new Thread(this);
+		this.acceptor.setPriority(scheduler.getPriority());
+		this.acceptor.start();
 	}
 
 	@Override
 	public void run() {
-		do try {
-			Socket client = skt.accept();
-			bindedService.getConstructor(Socket.class).newInstance(client);
+		while (accepting) try {
+			serve(skt.socket().accept());
+		} catch (@SuppressWarnings("unused") SocketTimeoutException e) {
+			// check again whether the listener was stopped
 		} catch (IOException e) {
 			System.err.println(String.format(
-					"ServerSocket failed to accept client on port %i.\n%s",
-					skt.getLocalPort(),
+					"ServerSocket failed to accept client on port %d.\n%s",
+					skt.socket().getLocalPort(),
 					e.getMessage()
 					));
+		}
+
+		// Serve the connections already queued before releasing the port,
+		// until none came in during a pause.
+		try {
+			skt.configureBlocking(false);
+			int idle = 0;
+			while (idle < 2) {
+				SocketChannel queued = skt.accept();
+				if (queued != null) {
+					serve(queued.socket());
+					idle = 0;
+				} else if (++idle < 2) {
+					Thread.sleep(SWEEP_PAUSE);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (@SuppressWarnings("unused") InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			try {skt.close();} catch (IOException e) {e.printStackTrace();}
+		}
+	}
+
+	/**
+	 * Initiates the binded service for a new connection, if it respects the
+	 * {@link #policy}.
+	 * @param client the socket of the new connection.
+	 */
+	private void serve(Socket client) {
+		AcceptEvent event = new AcceptEvent();
+		event.begin();
+		event.port = client.getLocalPort();
+		event.clientAddress = client.getInetAddress().getHostAddress();
+		event.admitted = admit(client);
+		if (!event.admitted) {
+			reject(client);
+		} else try {
+			constructor.newInstance(client);
 		} catch (Exception e) {
 			e.printStackTrace();
-		} while (true);
+			BRiService.removeOnClose(client);
+			release(client);
+			try {client.close();} catch (@SuppressWarnings("unused") IOException e2) {}
+		}
+		event.commit();
+	}
+
+	/**
+	 * Gets the listener of a port.
+	 * @param port the port.
+	 * @return the listener of the port, or {@code null} if there is none.
+	 */
+	static ConnectionListener of(int port) {
+		return bound.get(port);
+	}
+
+	/**
+	 * Checks whether a new channel of a multiplexed connection respects the
+	 * {@link #policy}, as if it were a connection of its own. If so, its
+	 * session is counted until the channel is closed.
+	 * @param channel the socket of the new channel.
+	 * @return {@code true} if the channel may be served, {@code false}
+	 * otherwise.
+	 */
+	boolean admitChannel(Socket channel) {
+		return admit(channel);
+	}
+
+	/**
+	 * Stops accepting new connections and releases the port. The sessions
+	 * in flight carry on.
+	 */
+	public void stop() {
+		accepting = false;
+	}
+
+	/**
+	 * Gets the number of sessions in flight.
+	 * @return the number of sessions in flight.
+	 */
+	public int getActiveSessions() {
+		for (Socket s : sessions) if (s.isClosed()) release(s);
+		return sessions.size();
+	}
+
+	/**
+	 * Waits for the sessions in flight to end, once this listener has been
+	 * {@link #stop() stopped}. The sessions still in flight once the timeout
+	 * is elapsed are closed.
+	 * @param timeout the maximum time to wait, in milliseconds.
+	 * @return the number of sessions closed because of the timeout.
+	 */
+	public int drain(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		try {
+			if (timeout > 0) acceptor.join(timeout); // join(0) waits forever
+			while (getActiveSessions() > 0
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+		} catch (@SuppressWarnings("unused") InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		int closed = 0;
+		for (Socket s : sessions) {
+			if (s.isClosed()) continue;
+			try {
+				// a channel closed from here must not wait for its connection
+				if (s instanceof MuxChannel c) c.closeNow();
+				else s.close();
+				closed++;
+			} catch (@SuppressWarnings("unused") IOException e) {
+				// the session is over anyway
+			}
+		}
+		sessions.clear();
+		perAddress.clear();
+		total.set(0);
+		return closed;
+	}
+
+	/**
+	 * Checks whether a new connection respects the {@link #policy}, and
+	 * whether the {@link #scheduler} can run its session. If so, the session
+	 * is counted until its socket is closed.
+	 * @param client the socket of the new connection.
+	 * @return {@code true} if the connection may be served, {@code false}
+	 * otherwise.
+	 */
+	private boolean admit(Socket client) {
+		if (scheduler.isFull()) return false;
+		InetAddress address = client.getInetAddress();
+		if (buckets.size() > MAX_TRACKED_ADDRESSES) {
+			buckets.values().removeIf(TokenBucket::isFull);
+		}
+		TokenBucket bucket = buckets.computeIfAbsent(address,
+				a -> new TokenBucket(policy.getRate(), policy.getBurst())
+				);
+		if (!bucket.tryAcquire()) return false;
+
+		if (total.incrementAndGet() > policy.getMaxConnections()) {
+			total.decrementAndGet();
+			return false;
+		}
+		boolean[] admitted = {false};
+		perAddress.compute(address, (a, n) -> {
+			int count = n == null ? 0 : n;
+			if (count >= policy.getMaxPerAddress()) return n;
+			admitted[0] = true;
+			return count + 1;
+		});
+		if (!admitted[0]) {
+			total.decrementAndGet();
+			return false;
+		}
+		sessions.add(client);
+		BRiService.onClose(client, () -> release(client));
+		return true;
+	}
+
+	/**
+	 * Stops counting the session of a socket, if it is still counted.
+	 * @param client the socket of the session.
+	 */
+	private void release(Socket client) {
+		if (!sessions.remove(client)) return;
+		total.decrementAndGet();
+		perAddress.computeIfPresent(client.getInetAddress(),
+				(a, n) -> n > 1 ? n - 1 : null
+				);
+	}
+
+	/**
+	 * Resets a connection without a word, which releases it at once.
+	 * @param client the socket of the rejected connection.
+	 */
+	private static void reject(Socket client) {
+		try {
+			client.setSoLinger(true, 0);
+			client.close();
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// the connection is dropped anyway
+		}
 	}
 
 }
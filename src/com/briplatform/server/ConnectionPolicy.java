@@ -0,0 +1,128 @@
+package com.briplatform.server;
+
+/**
+ * The ConnectionPolicy class holds the limits a {@link ConnectionListener}
+ * enforces on incoming connections, before any service is instantiated.
+ * 
+ * @author Lucas Pinard
+ */
+public class ConnectionPolicy {
+
+	/** Policy used when none is specified. */
+	public static final ConnectionPolicy DEFAULT
+		= new ConnectionPolicy(50, 256, 16, 5, 20);
+
+	/** Maximum number of connections waiting to be accepted. */
+	private final int backlog;
+
+	/** Maximum number of concurrent connections. */
+	private final int maxConnections;
+
+	/** Maximum number of concurrent connections from a single address. */
+	private final int maxPerAddress;
+
+	/** Number of connections per second allowed from a single address. */
+	private final double rate;
+
+	/** Number of connections a single address may open in a burst. */
+	private final int burst;
+
+	/** Whether the port may be shared with another server process. */
+	private final boolean reusePort;
+
+	/**
+	 * Creates a new connection policy.
+	 * @param backlog maximum number of connections waiting to be accepted.
+	 * @param maxConnections maximum number of concurrent connections.
+	 * @param maxPerAddress maximum number of concurrent connections from a 
+	 * single address.
+	 * @param rate number of connections per second allowed from a single
+	 * address, on average.
+	 * @param burst number of connections a single address may open at once.
+	 */
+	public ConnectionPolicy(int backlog, int maxConnections, 
+			int maxPerAddress, double rate, int burst) {
+		this(backlog, maxConnections, maxPerAddress, rate, burst, false);
+	}
+
+	/**
+	 * Creates a new connection policy.
+	 * @param backlog maximum number of connections waiting to be accepted.
+	 * @param maxConnections maximum number of concurrent connections.
+	 * @param maxPerAddress maximum number of concurrent connections from a 
+	 * single address.
+	 * @param rate number of connections per second allowed from a single
+	 * address, on average.
+	 * @param burst number of connections a single address may open at once.
+	 * @param reusePort whether the port may be bound by another server
+	 * process at the same time, to hand the connections over to it.
+	 */
+	public ConnectionPolicy(int backlog, int maxConnections, 
+			int maxPerAddress, double rate, int burst, boolean reusePort) {
+		this.backlog = backlog;
+		this.maxConnections = maxConnections;
+		this.maxPerAddress = maxPerAddress;
+		this.rate = rate;
+		this.burst = burst;
+		this.reusePort = reusePort;
+	}
+
+	/**
+	 * Creates a copy of this policy which shares the port or not.
+	 * @param reusePort whether the port may be bound by another server
+	 * process at the same time.
+	 * @return the copy of this policy.
+	 */
+	public ConnectionPolicy withReusePort(boolean reusePort) {
+		return new ConnectionPolicy(backlog, maxConnections, maxPerAddress,
+				rate, burst, reusePort);
+	}
+
+	/**
+	 * Gets the maximum number of connections waiting to be accepted.
+	 * @return the maximum number of connections waiting to be accepted.
+	 */
+	public int getBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * Gets the maximum number of concurrent connections.
+	 * @return the maximum number of concurrent connections.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Gets the maximum number of concurrent connections from an address.
+	 * @return the maximum number of concurrent connections from an address.
+	 */
+	public int getMaxPerAddress() {
+		return maxPerAddress;
+	}
+
+	/**
+	 * Gets the number of connections per second allowed from an address.
+	 * @return the number of connections per second allowed from an address.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Gets the number of connections an address may open in a burst.
+	 * @return the number of connections an address may open in a burst.
+	 */
+	public int getBurst() {
+		return burst;
+	}
+
+	/**
+	 * Checks whether the port may be shared with another server process.
+	 * @return {@code true} if the port may be shared, {@code false} otherwise.
+	 */
+	public boolean isReusePort() {
+		return reusePort;
+	}
+}
@@ -0,0 +1,34 @@
+package com.briplatform.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of a service requested to the {@link AmatService},
+ * lasting until the service is found.
+ *
+ * @author Lucas Pinard
+ */
+@Name("com.briplatform.Dispatch")
+@Label("Service Dispatch")
+@Category("BRiPlatform")
+@Description("A service requested by an amateur client")
+class DispatchEvent extends jdk.jfr.Event {
+
+	@Label("Service")
+	String service;
+
+	@Label("Client Address")
+	String clientAddress;
+
+	@Label("Found")
+	boolean found;
+
+	@Label("Asynchronous")
+	boolean async;
+
+	@Label("Cacheable")
+	boolean cacheable;
+}
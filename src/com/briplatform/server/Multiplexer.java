@@ -0,0 +1,215 @@
+package com.briplatform.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.briplatform.server.resources.BRiService;
+import com.briplatform.server.resources.SessionScheduler;
+
+/**
+ * The Multiplexer class carries several amateur sessions over a single
+ * connection. A client asks for it by answering the service list of the
+ * {@link AmatService} with {@link #TOKEN}, and waits for the same line in
+ * return. From then on, each line is a frame {@code <id> <line>}, where id is
+ * a channel number chosen by the client:
+ * <ul>
+ * <li>{@code <id> $$OPEN$$} opens a new amateur session on the channel;</li>
+ * <li>{@code <id> <line>} carries a line of the session, either way;</li>
+ * <li>{@code <id>+<text>} carries the beginning of a line the server is still
+ * streaming;</li>
+ * <li>{@code <id> $$CLOSE$$} closes the session, either way.</li>
+ * </ul>
+ * The frames waiting to be sent are taken in turn from each channel, one at
+ * a time, so that a talkative session can't starve the others.
+ * <p>
+ * If the client asked for compression before multiplexing, the frames are
+ * compressed like any other line, whole. A channel may rather ask for
+ * compression on its own, by sending {@code <id> $$DEFLATE$$} once opened.
+ * <p>
+ * Each channel counts as a connection of its own against the
+ * {@link ConnectionPolicy} of the port, rate included: a channel exceeding
+ * it is closed as soon as it is opened.
+ *
+ * @author Lucas Pinard
+ */
+class Multiplexer extends BRiService {
+
+	/** Line asking for, then acknowledging, a multiplexed connection. */
+	static final String TOKEN = "$$MUX$$";
+
+	/** Line opening a channel. */
+	static final String OPEN = "$$OPEN$$";
+
+	/** Line closing a channel. */
+	static final String CLOSE = "$$CLOSE$$";
+
+	/** Maximum number of channels open at once on a connection. */
+	private static final int MAX_CHANNELS = 64;
+
+	/** <i>Thread-safe. </i>Maps the open channels to their id. */
+	private final Map<Integer, MuxChannel> channels = new ConcurrentHashMap<>();
+
+	/** <i>Thread-safe. </i>Channels having frames to send, in turn order. */
+	private final BlockingQueue<MuxChannel> runnable = new LinkedBlockingQueue<>();
+
+	/** Writer of the frames on the connection. */
+	private PrintWriter frames;
+
+	/** Lock guarding the {@link #sender} and {@link #ended}. */
+	private final Object lock = new Object();
+
+	/** The thread sending the frames, while it runs. */
+	private Thread sender;
+
+	/** Whether the connection has ended. */
+	private boolean ended = false;
+
+	public Multiplexer(Socket client) {
+		super(client);
+	}
+
+	@Override
+	public void run() {
+		try {
+			BufferedReader in = getReader();
+			frames = getWriter();
+			// the sender takes a thread of the scheduler of the port as well
+			if (!SessionScheduler.of(getClient().getLocalPort())
+					.tryExecute(this::send)) {
+				return;
+			}
+			frames.println(TOKEN);
+			flush();
+
+			String frame;
+			while ((frame = in.readLine()) != null) receive(frame);
+		} catch (@SuppressWarnings("unused") IOException e) {
+			System.err.println("Connection ended with " + getClientAddress());
+		} finally {
+			channels.values().forEach(MuxChannel::abort);
+			synchronized (lock) {
+				ended = true;
+				if (sender != null) sender.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Dispatches a frame received to its channel, opening or closing it if
+	 * requested. Malformed frames are ignored.
+	 * @param frame the frame received.
+	 */
+	private void receive(String frame) {
+		int sep = frame.indexOf(' ');
+		int id;
+		try {
+			id = Integer.parseInt(frame.substring(0, sep));
+		} catch (@SuppressWarnings("unused") RuntimeException e) {
+			return;
+		}
+		String line = frame.substring(sep + 1);
+		MuxChannel c = channels.get(id);
+
+		if (OPEN.equals(line)) {
+			if (c != null) return;
+			c = new MuxChannel(this, id);
+			channels.put(id, c);
+			ConnectionListener listener
+				= ConnectionListener.of(getClient().getLocalPort());
+			if (channels.size() > MAX_CHANNELS 
+					|| listener != null && !listener.admitChannel(c)) {
+				try {c.close();} catch (@SuppressWarnings("unused") IOException e) {}
+			} else {
+				new AmatService(c);
+			}
+		} else if (c == null) {
+			return;
+		} else if (CLOSE.equals(line)) {
+			c.abort();
+		} else {
+			c.deliver(line);
+		}
+	}
+
+	/**
+	 * Sends the frames of the channels in turn, until the connection ends.
+	 * The connection is flushed whenever no channel has frames to send.
+	 */
+	private void send() {
+		synchronized (lock) {
+			if (ended) return;
+			sender = Thread.currentThread();
+		}
+		try {
+			do {
+				MuxChannel c = runnable.take();
+				String frame = c.outbound.poll();
+				if (frame != null) frames.println(frame);
+				if (!c.outbound.isEmpty()) {
+					runnable.add(c);
+				} else {
+					c.scheduled.set(false);
+					schedule(c); // in case a frame was queued meanwhile
+				}
+				if (runnable.isEmpty()) flush();
+			} while (true);
+		} catch (@SuppressWarnings("unused") InterruptedException e) {
+			// the connection ended
+		} catch (@SuppressWarnings("unused") IOException e) {
+			try {getClient().close();} catch (@SuppressWarnings("unused") IOException e2) {}
+		} finally {
+			synchronized (lock) {
+				sender = null;
+				Thread.interrupted(); // the thread goes back to the scheduler
+			}
+		}
+	}
+
+	/**
+	 * Flushes the frames written, encoding them if the client asked for
+	 * compression.
+	 * @throws IOException if the connection was lost.
+	 */
+	private void flush() throws IOException {
+		frames.flush();
+		if (frames.checkError()) throw new IOException("Connection lost");
+	}
+
+	/**
+	 * Queues a channel for its turn, if it has frames to send and is not
+	 * queued already.
+	 * @param c the channel.
+	 */
+	void schedule(MuxChannel c) {
+		if (!c.outbound.isEmpty() && c.scheduled.compareAndSet(false, true)) {
+			runnable.add(c);
+		}
+	}
+
+	/**
+	 * Forgets a closed channel.
+	 * @param c the channel.
+	 */
+	void remove(MuxChannel c) {
+		channels.remove(c.id, c);
+	}
+
+	/**
+	 * Gets the socket of the multiplexed connection.
+	 * @return the socket of the multiplexed connection.
+	 */
+	Socket getPeer() {
+		return getClient();
+	}
+
+	public static String toStringue() {
+		return Multiplexer.class.getSimpleName();
+	}
+
+}
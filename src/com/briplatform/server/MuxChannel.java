@@ -0,0 +1,226 @@
+package com.briplatform.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The MuxChannel class is the socket of a session carried by a
+ * {@link Multiplexer}. The lines written to it are queued as frames of its
+ * channel, and the frames received on its channel are read from it, so that
+ * any blocking service can use it as if it were a connection of its own.
+ *
+ * @author Lucas Pinard
+ */
+class MuxChannel extends Socket {
+
+	/** Number of frames a channel may queue before its writer blocks. */
+	private static final int MAX_OUTBOUND = 16;
+
+	/** Number of lines a channel may receive ahead of its reader. */
+	private static final int MAX_INBOUND = 64;
+
+	/** Signal queued once the channel is closed. */
+	private static final byte[] EOF = new byte[0];
+
+	/** The multiplexer carrying this channel. */
+	private final Multiplexer mux;
+
+	/** Id of this channel in the {@link #mux}. */
+	final int id;
+
+	/** <i>Thread-safe. </i>Frames waiting to be sent by the {@link #mux}. */
+	final BlockingQueue<String> outbound = new ArrayBlockingQueue<>(MAX_OUTBOUND);
+
+	/** Whether this channel is waiting for its turn in the {@link #mux}. */
+	final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+	/** <i>Thread-safe. </i>Lines received and not read yet. */
+	private final BlockingQueue<byte[]> inbound = new LinkedBlockingQueue<>();
+
+	/** Whether this channel is closed. */
+	private volatile boolean closed = false;
+
+	/** Stream of the lines received on this channel. */
+	private final InputStream input = new InputStream() {
+		private byte[] current = EOF;
+		private int pos = 0;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (pos == current.length) try {
+				current = inbound.take();
+				pos = 0;
+				if (current == EOF) {
+					inbound.add(EOF); // for the next reads
+					return -1;
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException(e.getMessage());
+			}
+			int n = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			if (pos < current.length) return current.length - pos;
+			byte[] next = inbound.peek();
+			return next == null ? 0 : next.length;
+		}
+	};
+
+	/** Stream queuing the lines written as frames of this channel. */
+	private final OutputStream output = new OutputStream() {
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) throws IOException {
+			if (b != '\n') {
+				line.write(b);
+				return;
+			}
+			String l = line.toString(StandardCharsets.UTF_8);
+			line.reset();
+			if (l.endsWith("\r")) l = l.substring(0, l.length()-1);
+			send(id + " " + l);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (line.size() == 0) return;
+			String l = line.toString(StandardCharsets.UTF_8);
+			line.reset();
+			send(id + "+" + l);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	};
+
+	/**
+	 * Creates a new channel.
+	 * @param mux the multiplexer carrying the channel.
+	 * @param id the id of the channel, chosen by the client.
+	 */
+	MuxChannel(Multiplexer mux, int id) {
+		this.mux = mux;
+		this.id = id;
+	}
+
+	/**
+	 * Delivers a line received on this channel. A channel receiving more
+	 * lines than {@link #MAX_INBOUND} ahead of its reader is closed.
+	 * @param line the line received.
+	 */
+	void deliver(String line) {
+		if (inbound.size() >= MAX_INBOUND) {
+			closeNow();
+			return;
+		}
+		inbound.add((line + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Queues a frame to be sent by the {@link #mux}, waiting for room if this
+	 * channel already has too many frames waiting.
+	 * @param frame the frame to send.
+	 * @throws IOException if this channel is closed in the meantime.
+	 */
+	private void send(String frame) throws IOException {
+		try {
+			while (!outbound.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+				if (closed) throw new IOException("Socket closed");
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException(e.getMessage());
+		}
+		mux.schedule(this);
+	}
+
+	/**
+	 * Closes this channel because the client closed it or the connection
+	 * ended: nothing is sent to the client.
+	 */
+	void abort() {
+		closed = true;
+		inbound.add(EOF);
+		mux.remove(this);
+	}
+
+	/**
+	 * Closes this channel without waiting, and tells the client so if there
+	 * is room left for it among the frames waiting to be sent.
+	 */
+	synchronized void closeNow() {
+		if (closed) return;
+		abort();
+		if (outbound.offer(id + " " + Multiplexer.CLOSE)) mux.schedule(this);
+	}
+
+	/**
+	 * Closes this channel, and tells the client so unless the frames waiting
+	 * to be sent leave no room for it after a short wait.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) return;
+		closed = true; // so that send() does not wait forever
+		try {
+			send(id + " " + Multiplexer.CLOSE);
+		} finally {
+			abort();
+		}
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return input;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return output;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return mux.getPeer().getInetAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return mux.getPeer().getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return mux.getPeer().getLocalPort();
+	}
+}
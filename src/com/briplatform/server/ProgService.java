@@ -4,10 +4,15 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.Socket;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.zip.ZipException;
 
 import com.briplatform.server.resources.BRiService;
+import com.briplatform.server.resources.LoaderTracker;
 import com.briplatform.server.resources.Programmer;
 import com.briplatform.server.resources.Registry;
+import com.briplatform.server.resources.SessionTrace;
 
 /**
  * This class is the programmer service which the programmer client app
@@ -80,6 +85,8 @@ public class ProgService extends BRiService {
 					+ "off - to deactivate one of your services"+nl
 					+ "update - to update one of your services."+nl
 					+ "rem - to remove one of your services."+nl
+					+ "trace - to see the recent events of the sessions of your services."+nl
+					+ "loaders - to see the class loaders of your services."+nl
 					+ "close - to end the connection."
 					);
 		} 
@@ -88,7 +95,10 @@ public class ProgService extends BRiService {
 			write("changeftp <url> - sets your ftp server address to url");
 			return;
 		case "add":
-			write("add <name> <class|jar> [on|off] - adds the service to the BRiPlatform");
+			write("add <name> <class|jar> [on|off] - adds the service to the BRiPlatform"+nl
+					+ "add <jar> manifest [on|off] - adds all the services listed"
+					+ " by the " + Programmer.MANIFEST_ATTRIBUTE 
+					+ " attribute of the manifest of the JAR");
 			return;
 		case "see":
 			write("see - to see your services and their status");
@@ -100,11 +110,20 @@ public class ProgService extends BRiService {
 			write("off <name> - deactivates the specified service");
 			return;
 		case "update":
-			write("update <name> <class|jar> [on|off] - updates the specified service");
+			write("update <name> <class|jar> [on|off] - updates the specified service"+nl
+					+ "update <jar> manifest [on|off] - updates all the services"
+					+ " of the JAR at once");
 			return;
 		case "rem":
 			write("rem <name> - uninstalls the specified service");
 			return;
+		case "trace":
+			write("trace [id] - lists the live sessions of your services, or"
+					+ " dumps the recent events of the specified session");
+			return;
+		case "loaders":
+			write("loaders - reports the class loaders of your services");
+			return;
 		case "close":
 			write("close - to end the connection.");
 			return;
@@ -137,6 +156,12 @@ public class ProgService extends BRiService {
 			case "jar":
 				connected.addServiceFromJAR(args[0]);
 				break;
+			case "manifest":
+				List<String> names = connected.addServicesFromManifest(
+						args[0], args.length < 3 || !args[2].equals("off")
+						);
+				write("Success" + nl + "Installed : " + String.join(" ", names));
+				return;
 			default:
 				write("Invalid syntax");
 			}
@@ -149,6 +174,18 @@ public class ProgService extends BRiService {
 		} catch (@SuppressWarnings("unused") MalformedURLException e) {
 			write("Invalid syntax");
 			return;
+		} catch (ZipException e) {
+			write("Invalid JAR : " + e.getMessage());
+			return;
+		} catch (@SuppressWarnings("unused") IOException e) {
+			write("JAR not found");
+			return;
+		} catch (CompletionException e) {
+			write("Invalid JAR : " + e.getCause());
+			return;
+		} catch (LinkageError e) {
+			write("Invalid service : " + e);
+			return;
 		}
 		
 		if (args.length < 3 || args[2] != "off") {
@@ -174,8 +211,10 @@ public class ProgService extends BRiService {
 	public void update(String[] args) {
 		if (args.length < 2) {
 			write("Invalid syntax");
+			return;
 		}
-		connected.removeService(args[0]);
+		// services of a manifest are replaced by the update itself
+		if (!args[1].equals("manifest")) connected.removeService(args[0]);
 		add(args);
 	}
 
@@ -184,6 +223,25 @@ public class ProgService extends BRiService {
 		write("Success");
 	}
 	
+	public void trace(String[] args) {
+		if (args.length == 0) {
+			write(SessionTrace.getSessionList(connected.getUsername()));
+			return;
+		}
+		try {
+			SessionTrace trace = SessionTrace.get(
+					Long.parseLong(args[0]), connected.getUsername()
+					);
+			write(trace == null ? "Session not found" : trace.dump());
+		} catch (@SuppressWarnings("unused") NumberFormatException e) {
+			write("Invalid syntax");
+		}
+	}
+	
+	public void loaders(@SuppressWarnings("unused") String[] args) {
+		write(LoaderTracker.report(connected.getUsername()));
+	}
+	
 	public void close(String[] args) {
 		finish();
 	}
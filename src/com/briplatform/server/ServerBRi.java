@@ -1,13 +1,30 @@
 package com.briplatform.server;
 
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import com.briplatform.server.resources.Registry;
+import com.briplatform.server.resources.SessionScheduler;
 
 /**
  * The class ServerBRi is a non-instantiable class which is the entry point of the 
  * server application. It creates server sockets for both client application, 
  * and injects a Programmer into the Registry as test data.
+ * <p>
+ * On termination, the server stops accepting connections and lets the
+ * sessions in flight end for up to {@link #DRAIN_TIMEOUT} milliseconds. If
+ * both the old and the new server are started with {@code --reuse-port}, or
+ * with the {@value #REUSE_PORT} system property set to {@code true}, the
+ * ports are bound with {@code SO_REUSEPORT} where supported: the new server
+ * can then be started before the old one is terminated, for an upgrade
+ * which neither refuses connections nor drops sessions. Otherwise, a second
+ * server fails to bind the ports, as both would not share their registry.
+ * <p>
+ * The sessions of each port run on threads reserved to them, the programmer
+ * ones at a higher priority, so that programmers can still log in and switch
+ * off a service while the amateur clients overload the server.
  */
 public class ServerBRi {
 	
@@ -19,14 +36,82 @@ public class ServerBRi {
 	
 	/** Port on which the amateur clients shall connect to. */
 	private static final int PORT_AMAT = 7600;
+	
+	/** Limits on the programmer clients connections. */
+	private static final ConnectionPolicy POLICY_PROG
+		= new ConnectionPolicy(16, 32, 4, 1, 5);
+	
+	/** Limits on the amateur clients connections. */
+	private static final ConnectionPolicy POLICY_AMAT
+		= new ConnectionPolicy(128, 512, 16, 10, 20);
+	
+	/** Scheduler of the programmer clients sessions. */
+	private static final SessionScheduler SCHEDULER_PROG
+		= new SessionScheduler("BRi-prog", 32, Thread.MAX_PRIORITY);
+	
+	/** Scheduler of the amateur clients sessions. */
+	private static final SessionScheduler SCHEDULER_AMAT
+		= new SessionScheduler("BRi-amat", 1024, Thread.NORM_PRIORITY - 1);
+	
+	/** System property allowing the ports to be shared, for an upgrade. */
+	public static final String REUSE_PORT = "bri.reusePort";
+	
+	/** Time left to the sessions in flight to end on shutdown, in ms. */
+	private static final long DRAIN_TIMEOUT = 30_000;
+	
+	/** Listeners started by {@link #init()}. */
+	private static final List<ConnectionListener> listeners = new ArrayList<>();
 
+	/**
+	 * Starts listening on both ports, sharing them with another server
+	 * process only if the {@value #REUSE_PORT} system property is set to
+	 * {@code true}.
+	 */
 	public static void init() {
-		new ConnectionListener(PORT_PROG, ProgService.class);
-		new ConnectionListener(PORT_AMAT, AmatService.class);
+		init(Boolean.getBoolean(REUSE_PORT));
+	}
+
+	/**
+	 * Starts listening on both ports.
+	 * @param reusePort whether the ports may be shared with another server
+	 * process, to hand the connections over to it.
+	 */
+	public static void init(boolean reusePort) {
+		listeners.add(new ConnectionListener(
+				PORT_PROG, ProgService.class,
+				POLICY_PROG.withReusePort(reusePort), SCHEDULER_PROG
+				));
+		listeners.add(new ConnectionListener(
+				PORT_AMAT, AmatService.class,
+				POLICY_AMAT.withReusePort(reusePort), SCHEDULER_AMAT
+				));
+	}
+	
+	/**
+	 * Stops accepting connections on every port, then waits for the sessions
+	 * in flight to end. The sessions still in flight once the timeout is
+	 * elapsed are closed.
+	 * @param timeout the maximum time to wait, in milliseconds.
+	 */
+	public static void shutdown(long timeout) {
+		listeners.forEach(ConnectionListener::stop);
+		long deadline = System.currentTimeMillis() + timeout;
+		int closed = 0;
+		for (ConnectionListener l : listeners) {
+			closed += l.drain(Math.max(0, deadline - System.currentTimeMillis()));
+		}
+		listeners.clear();
+		if (closed > 0) {
+			System.err.println(closed + " sessions closed by shutdown.");
+		}
 	}
 	
 	public static void main(String[] args) throws MalformedURLException {
 		Registry.getInstance().addProgrammer("toto", "toto", "ftp://localhost:2121/classes/");
-		init(); 
+		init(Arrays.asList(args).contains("--reuse-port") 
+				|| Boolean.getBoolean(REUSE_PORT)); 
+		Runtime.getRuntime().addShutdownHook(
+				new Thread(() -> shutdown(DRAIN_TIMEOUT))
+				);
 	}
 }
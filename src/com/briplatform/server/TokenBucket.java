@@ -0,0 +1,61 @@
+package com.briplatform.server;
+
+/**
+ * The TokenBucket class is a rate limiter which allows bursts of a given
+ * size, then a given number of acquisitions per second.
+ * 
+ * @author Lucas Pinard
+ */
+class TokenBucket {
+
+	/** Number of tokens refilled per nanosecond. */
+	private final double rate;
+
+	/** Maximum number of tokens in the bucket. */
+	private final double capacity;
+
+	/** Number of tokens currently in the bucket. */
+	private double tokens;
+
+	/** Time of the last refill, in nanoseconds. */
+	private long last;
+
+	/**
+	 * Creates a new full token bucket.
+	 * @param perSecond number of tokens refilled per second.
+	 * @param burst maximum number of tokens in the bucket.
+	 */
+	TokenBucket(double perSecond, int burst) {
+		this.rate = perSecond / 1e9;
+		this.capacity = burst;
+		this.tokens = burst;
+		this.last = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token from the bucket if there is one.
+	 * @return {@code true} if a token was taken, {@code false} otherwise.
+	 */
+	synchronized boolean tryAcquire() {
+		refill();
+		if (tokens < 1) return false;
+		tokens--;
+		return true;
+	}
+
+	/**
+	 * Checks whether the bucket is full, i.e. whether it can be forgotten.
+	 * @return {@code true} if the bucket is full, {@code false} otherwise.
+	 */
+	synchronized boolean isFull() {
+		refill();
+		return tokens >= capacity;
+	}
+
+	/** Adds the tokens earned since the last refill. */
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - last) * rate);
+		last = now;
+	}
+}
@@ -0,0 +1,407 @@
+package com.briplatform.server.resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+
+/**
+ * The AsyncBRiService class is the base class of non-blocking services. Unlike
+ * a plain {@link BRiService}, it does not hold a thread while waiting for the
+ * client: its reads and writes return {@link CompletionStage}s which are
+ * completed by a single selector thread shared by every asynchronous service.
+ * <p>
+ * Subclasses implement {@link #serve()} instead of {@link #run()}, and the
+ * connection is closed once the returned stage completes. The inherited
+ * {@link #write(String)} still appends a message to be sent later, but the
+ * blocking {@link #read()} is not available. Continuations are run on the
+ * selector thread, hence they must never block.
+ *
+ * @see BRiService
+ *
+ * @author Lucas Pinard
+ */
+public abstract class AsyncBRiService extends BRiService {
+
+	/** The selector thread shared by every asynchronous service. */
+	private static final EventLoop loop = new EventLoop();
+
+	/** Non-blocking channel of the {@link #getClient() client} socket. */
+	private final SocketChannel channel;
+
+	/** Messages written but not yet handed to the {@link #loop}. */
+	private final StringWriter outgoing;
+
+	/** <i>Loop thread only. </i>Key of the channel in the {@link #loop}. */
+	private SelectionKey key;
+
+	/** <i>Loop thread only. </i>Encoded messages waiting to be sent. */
+	private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+
+	/** <i>Loop thread only. </i>Flushes waiting for {@link #outbound}. */
+	private final List<CompletableFuture<Void>> flushes = new ArrayList<>();
+
+	/** <i>Loop thread only. </i>Bytes received from the channel. */
+	private final ByteBuffer inbound = ByteBuffer.allocate(8192);
+
+	/**
+	 * Bytes received by a previous service but not read yet, which are read
+	 * before those of the channel. Set before this service is started.
+	 */
+	private ByteBuffer carried = ByteBuffer.allocate(0);
+
+	/** <i>Loop thread only. </i>Bytes of the line being received. */
+	private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+	/** <i>Loop thread only. </i>The read waiting for a line, if any. */
+	private CompletableFuture<String> pendingRead;
+
+	/**
+	 * Constructs a new asynchronous service using the given socket.
+	 * @param client the socket this service shall use, which must have been
+	 * accepted from a {@link java.nio.channels.ServerSocketChannel}.
+	 */
+	public AsyncBRiService(Socket client) {
+		this(client, new StringWriter());
+	}
+
+	private AsyncBRiService(Socket client, StringWriter outgoing) {
+		super(client, outgoing);
+		this.outgoing = outgoing;
+		this.channel = client.getChannel();
+		if (channel == null) {
+			throw new IllegalArgumentException(
+					"An asynchronous service requires a channel socket."
+					);
+		}
+	}
+
+	/**
+	 * Serves the client. This method is called on the selector thread and
+	 * must not block: every exchange with the client shall be chained on the
+	 * stages returned by {@link #readAsync()} and {@link #writeAsync(String)}.
+	 * @return a stage completed once the service is done with the client.
+	 */
+	protected abstract CompletionStage<?> serve();
+
+	@Override
+	public final void run() {
+		CompletionStage<?> session;
+		try {
+			session = serve();
+		} catch (Exception e) {
+			session = CompletableFuture.failedFuture(e);
+		}
+		session.exceptionally(e -> {
+			System.err.println("Connection ended with " + getClientAddress());
+			return null;
+		})
+		.thenCompose(r -> flushAsync())
+		.whenComplete((r, e) -> finish());
+	}
+
+	/**
+	 * Registers this service on the selector thread and runs it there,
+	 * instead of on a thread of its {@link SessionScheduler}.
+	 */
+	@Override
+	public final void start() {
+		loop.execute(() -> {
+			try {
+				channel.configureBlocking(false);
+				key = channel.register(loop.selector, 0, this);
+			} catch (@SuppressWarnings("unused") IOException e) {
+				System.err.println("Connection ended with " + getClientAddress());
+				finish();
+				return;
+			}
+			open();
+			run();
+		});
+	}
+
+	/**
+	 * Hands over the bytes a previous service received from the client but
+	 * did not read, so that they are read first.
+	 * @param bytes the bytes received.
+	 */
+	void carry(byte[] bytes) {
+		carried = ByteBuffer.wrap(bytes);
+	}
+
+	/**
+	 * Sends all the waiting messages and reads the client answer, without
+	 * blocking.
+	 * @return a stage completed with the client answer, or exceptionally with
+	 * an {@link IOException} if the socket is closed in the meantime.
+	 */
+	protected final CompletionStage<String> readAsync() {
+		CompletableFuture<String> result = new CompletableFuture<>();
+		outgoing.write(System.lineSeparator());
+		loop.execute(() -> {
+			if (pendingRead != null) {
+				result.completeExceptionally(new IllegalStateException(
+						"A read is already pending."
+						));
+				return;
+			}
+			pendingRead = result;
+			record("flush", 0);
+			drainOutgoing();
+			process();
+		});
+		return result.thenApply(
+				l -> l.replace("$$NEWLINE$$", System.lineSeparator())
+				);
+	}
+
+	/**
+	 * Appends a new line and sends all the waiting messages, without
+	 * blocking.
+	 * @param line the line to append.
+	 * @return a stage completed once every message has been handed to the
+	 * socket.
+	 */
+	protected final CompletionStage<Void> writeAsync(String line) {
+		write(line);
+		return flushAsync();
+	}
+
+	/**
+	 * Sends all the waiting messages, without blocking.
+	 * @return a stage completed once every message has been handed to the
+	 * socket.
+	 */
+	protected final CompletionStage<Void> flushAsync() {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		loop.execute(() -> {
+			flushes.add(result);
+			drainOutgoing();
+			process();
+		});
+		return result;
+	}
+
+	/**
+	 * Sends every message of the given publisher, without blocking. A message
+	 * is only requested once the previous one has been handed to the socket,
+	 * so a slow client slows the publisher down instead of growing the
+	 * buffer. Each message is sent on a line of its own ending with
+	 * {@link #STREAM_MORE}, like by {@link #stream(Flow.Publisher)}.
+	 * @param messages the publisher of the messages to send.
+	 * @return a stage completed once every message has been handed to the
+	 * socket.
+	 */
+	protected final CompletionStage<Void> streamAsync(
+			Flow.Publisher<String> messages) {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		messages.subscribe(new Flow.Subscriber<String>() {
+			private Flow.Subscription subscription;
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription = s;
+				s.request(1);
+			}
+			@Override
+			public void onNext(String message) {
+				write(message);
+				outgoing.write(STREAM_MORE + System.lineSeparator());
+				flushAsync().whenComplete((r, e) -> {
+					if (e == null) {
+						subscription.request(1);
+					} else {
+						subscription.cancel();
+						result.completeExceptionally(e);
+					}
+				});
+			}
+			@Override
+			public void onError(Throwable t) {
+				result.completeExceptionally(t);
+			}
+			@Override
+			public void onComplete() {
+				flushAsync().whenComplete((r, e) -> {
+					if (e == null) result.complete(null);
+					else result.completeExceptionally(e);
+				});
+			}
+		});
+		return result;
+	}
+
+	/** <i>Loop thread only. </i>Encodes the written messages for sending. */
+	private void drainOutgoing() {
+		StringBuffer sb = outgoing.getBuffer();
+		String messages;
+		synchronized (sb) {
+			messages = sb.toString();
+			sb.setLength(0);
+		}
+		if (!messages.isEmpty()) {
+			outbound.add(ByteBuffer.wrap(compression.encode(messages)
+					.getBytes(StandardCharsets.UTF_8)
+					));
+		}
+	}
+
+	/**
+	 * <i>Loop thread only. </i>Makes as much progress as the channel allows
+	 * on the pending flushes and read, then registers interest in whatever
+	 * is left to do.
+	 */
+	private void process() {
+		if (key == null) return;
+		try {
+			while (!outbound.isEmpty()) {
+				ByteBuffer b = outbound.peek();
+				channel.write(b);
+				if (b.hasRemaining()) break;
+				outbound.poll();
+			}
+			if (outbound.isEmpty()) {
+				flushes.forEach(f -> f.complete(null));
+				flushes.clear();
+			}
+			if (pendingRead != null) {
+				String l = nextLine();
+				if (negotiating && Compression.TOKEN.equals(l)) {
+					compression.enable();
+					record("deflate", 0);
+					l = nextLine();
+				}
+				if (l != null) {
+					negotiating = false;
+					record("read", l.length());
+					CompletableFuture<String> r = pendingRead;
+					pendingRead = null;
+					r.complete(l);
+				}
+			}
+			key.interestOps(
+					(outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE)
+					| (pendingRead == null ? 0 : SelectionKey.OP_READ)
+					);
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * <i>Loop thread only. </i>Reads the channel until a whole line has been
+	 * received.
+	 * @return the line received, or {@code null} if it is not complete yet.
+	 * @throws IOException if the socket is closed in the meantime.
+	 */
+	private String nextLine() throws IOException {
+		do {
+			inbound.flip();
+			while (inbound.hasRemaining()) {
+				byte b = inbound.get();
+				if (b == '\n') {
+					inbound.compact();
+					String l = line.toString(StandardCharsets.UTF_8);
+					line.reset();
+					return l.endsWith("\r") ? l.substring(0, l.length()-1) : l;
+				}
+				line.write(b);
+			}
+			inbound.clear();
+			if (carried.hasRemaining()) {
+				while (inbound.hasRemaining() && carried.hasRemaining()) {
+					inbound.put(carried.get());
+				}
+				continue;
+			}
+			int n = channel.read(inbound);
+			if (n < 0) throw new EOFException("Connection ended.");
+			if (n == 0) return null;
+		} while (true);
+	}
+
+	/**
+	 * <i>Loop thread only. </i>Fails every pending operation.
+	 * @param cause the reason of the failure.
+	 */
+	private void fail(Throwable cause) {
+		if (pendingRead != null) {
+			pendingRead.completeExceptionally(cause);
+			pendingRead = null;
+		}
+		flushes.forEach(f -> f.completeExceptionally(cause));
+		flushes.clear();
+		outbound.clear();
+	}
+
+	/**
+	 * The EventLoop class owns the selector shared by the asynchronous
+	 * services, and runs both their readiness callbacks and the tasks
+	 * submitted to it on a single daemon thread.
+	 */
+	private static final class EventLoop implements Runnable {
+
+		/** The selector every asynchronous channel is registered with. */
+		private final Selector selector;
+
+		/** <i>Thread-safe. </i>Tasks waiting to be run on the loop. */
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		EventLoop() {
+			try {
+				this.selector = Selector.open();
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to init selector", e);
+			}
+			Thread t = new Thread(this, "BRi-async-io");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/**
+		 * Submits a task to be run on the loop thread.
+		 * @param task the task to run.
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			do try {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) try {
+					task.run();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					SelectionKey k = i.next();
+					i.remove();
+					if (k.isValid()) ((AsyncBRiService) k.attachment()).process();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} while (true);
+		}
+	}
+
+}
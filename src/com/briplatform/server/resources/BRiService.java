@@ -3,12 +3,25 @@ package com.briplatform.server.resources;
 import static java.lang.reflect.Modifier.*;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The BRiService class is the base class of any service. A service can't be
@@ -23,6 +36,22 @@ import java.net.Socket;
  */
 public abstract class BRiService implements Runnable {
 
+	/** Number of streamed messages requested ahead of the socket. */
+	private static final int STREAM_WINDOW = 16;
+
+	/** Signal queued once a streamed publisher is completed. */
+	private static final Object STREAM_END = new Object();
+
+	/**
+	 * Suffix of the lines carrying a streamed message, which the client
+	 * shall display without answering.
+	 */
+	public static final String STREAM_MORE = "$$MORE$$";
+
+	/** <i>Thread-safe. </i>Maps the actions to run once closed to the sockets. */
+	private static final Map<Socket, Runnable> closeActions
+		= new ConcurrentHashMap<>();
+
 	/** Server-side socket connected to the client. */
 	private Socket client;
 
@@ -32,6 +61,36 @@ public abstract class BRiService implements Runnable {
 	/** Writer extracted from the {@link #client} socket. */
 	private PrintWriter out;
 
+	/** Compression of the lines sent, once negotiated with the client. */
+	final Compression compression = new Compression();
+
+	/** Whether the client may still ask for compression. */
+	boolean negotiating = true;
+
+	/** Whether the client has been handed to another service. */
+	private volatile boolean handedOff = false;
+
+	/** Recorder of the session events, shared along hand-offs. */
+	private SessionTrace trace;
+
+	/** Flight recorder event of the session, shared like the {@link #trace}. */
+	private SessionEvent event;
+
+	/** Whether the session records were closed by {@link #finish()}. */
+	private final AtomicBoolean finished = new AtomicBoolean(false);
+
+	/** Cache recording the messages of this service, if it is cacheable. */
+	private ResponseCache cache;
+
+	/** Answers of the client, the first ones being replayed from the cache. */
+	private List<String> answers;
+
+	/** Number of {@link #answers} already read by this service. */
+	private int position;
+
+	/** Message written since the last answer, while recording. */
+	private StringBuilder turn;
+
 	/**
 	 * Constructs a new service using the given socket.
 	 * @param client the socket this service shall use.
@@ -41,20 +100,172 @@ public abstract class BRiService implements Runnable {
 
 		try {
 			this.in = new BufferedReader(
-					new InputStreamReader(client.getInputStream())
-					);
-			this.out = new PrintWriter(
-					client.getOutputStream(), false
+					new InputStreamReader(client.getInputStream(),
+							StandardCharsets.UTF_8)
 					);
+			this.out = new PrintWriter(compression.wrap(
+					new OutputStreamWriter(client.getOutputStream(),
+							StandardCharsets.UTF_8)
+					), false);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Constructs a new service using the given socket, whose messages are
+	 * appended to the given buffer instead of the socket stream. Only used by
+	 * {@link AsyncBRiService}, which drains the buffer itself.
+	 * @param client the socket this service shall use.
+	 * @param buffer the buffer receiving the written messages.
+	 */
+	BRiService(Socket client, Writer buffer) {
+		this.client = client;
+		this.out = new PrintWriter(buffer, false);
+	}
+
 	public abstract void run();
 
+	/**
+	 * Runs this service on a thread of the {@link SessionScheduler} bound to
+	 * the port of the client. The connection is closed once the
+	 * {@code run()} method returns, unless the client has been handed to
+	 * another service in the meantime. If the scheduler is full, the
+	 * connection is closed at once.
+	 * @see #handOff(BRiService)
+	 */
 	public void start() {
-		new Thread(this).start();
+		open();
+		if (!SessionScheduler.of(client.getLocalPort()).tryExecute(this::execute)) {
+			record("rejected", 0);
+			finish();
+		}
+	}
+
+	/**
+	 * Runs this service, then closes the connection unless the client has
+	 * been handed to another service. A failure of the service is logged
+	 * here, so that it never reaches the service which handed it the client.
+	 */
+	private void execute() {
+		boolean returned = false;
+		try {
+			run();
+			returned = true;
+		} catch (RuntimeException e) {
+			System.err.println(getClass().getSimpleName() + " failed with "
+					+ getClientAddress());
+			e.printStackTrace();
+		} finally {
+			if (!returned) cache = null; // a failed session is not recorded
+			if (!handedOff) finish();
+		}
+	}
+
+	/**
+	 * Hands the client over to the given service and runs it. This service
+	 * shall not use the socket anymore, and will no longer close it. A
+	 * blocking service is run by the current thread, so that the session
+	 * keeps its place in its {@link SessionScheduler}: this method shall be
+	 * the last one called by {@code run()}.
+	 * If the given service fails to take over, this one keeps the client, so
+	 * that the connection is still closed when it ends.
+	 * @param next the service taking over the client.
+	 */
+	protected final void handOff(BRiService next) {
+		handedOff = true;
+		try {
+			next.negotiating = negotiating;
+			if (compression.isEnabled()) next.compression.enable();
+			next.trace = trace;
+			next.event = event;
+			// the lines the client sent ahead are buffered by this reader
+			if (next.in != null && in != null) next.in = in;
+			if (next instanceof AsyncBRiService && in != null) {
+				((AsyncBRiService) next).carry(readAhead());
+			}
+			record("handoff", 0);
+			if (next instanceof AsyncBRiService) {
+				next.start();
+				return;
+			}
+			next.open();
+		} catch (RuntimeException | Error e) {
+			handedOff = false;
+			throw e;
+		}
+		next.execute();
+	}
+
+	/**
+	 * Reads what the client already sent, without blocking.
+	 * @return the bytes read.
+	 */
+	private byte[] readAhead() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			int c;
+			while (in.ready() && (c = in.read()) >= 0) sb.append((char) c);
+		} catch (@SuppressWarnings("unused") IOException e) {
+			// the service taking over will notice it
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Hands the client over to the given service, skipping its instantiation
+	 * while its messages can be replayed from its {@link Cacheable cache}.
+	 * If the service must be run eventually, it is first fed the answers
+	 * already replayed, silently.
+	 * @param service the service requested by the client.
+	 * @throws ReflectiveOperationException if the service cannot be
+	 * instantiated.
+	 * @throws IOException if the socket is closed in the meantime.
+	 */
+	protected final void dispatch(Class<? extends BRiService> service)
+			throws ReflectiveOperationException, IOException {
+		ResponseCache c = ResponseCache.of(service);
+		List<String> replayed = new ArrayList<>();
+		ResponseCache.Response r;
+		while (c != null && (r = c.get(replayed)) != null) {
+			record("cached", r.message.length());
+			out.write(r.message);
+			if (r.last) return;
+			replayed.add(read());
+		}
+
+		BRiService next = service.getConstructor(Socket.class)
+				.newInstance(client);
+		if (c != null) {
+			next.cache = c;
+			next.answers = replayed;
+			next.turn = new StringBuilder();
+		}
+		handOff(next);
+	}
+
+	/**
+	 * Opens the records of the session, unless they were handed over by a
+	 * previous service.
+	 */
+	final void open() {
+		if (trace == null) {
+			trace = SessionTrace.open(getClientAddress());
+			event = new SessionEvent();
+			event.begin();
+		}
+		trace.setService(getClass());
+		record("start", 0);
+	}
+
+	/**
+	 * Records a protocol event in the {@link SessionTrace} of the session.
+	 * @param e the kind of the event.
+	 * @param value the size or duration associated to the event.
+	 */
+	final void record(String e, long value) {
+		SessionTrace t = trace;
+		if (t != null) t.record(e, value);
 	}
 
 	/**
@@ -64,6 +275,11 @@ public abstract class BRiService implements Runnable {
 	 */
 	protected final void write(String line) {
 		line = line.replace(System.lineSeparator(), "$$NEWLINE$$");
+		record("write", line.length());
+		if (cache != null) {
+			if (position < answers.size()) return; // already replayed
+			turn.append(line);
+		}
 		out.write(line);
 	}
 
@@ -71,12 +287,134 @@ public abstract class BRiService implements Runnable {
 	 * Sends all the waiting messages and reads the client answer.
 	 * @return the client answer.
 	 * @throws IOException if the socket is closed in the meantime.
+	 * @throws IllegalStateException if called from an {@link AsyncBRiService}.
 	 */
 	protected final String read() throws IOException {
+		if (in == null) {
+			throw new IllegalStateException(
+					"Blocking read is not available, use readAsync()."
+					);
+		}
+		if (cache != null) {
+			if (position < answers.size()) {
+				record("replay", 0);
+				return answers.get(position++);
+			}
+			cache.put(answers, turn.toString(), false);
+			turn.setLength(0);
+		}
+		negotiate();
 		out.println();
 		out.flush();
-		String line = in.readLine();
-		return line.replace("$$NEWLINE$$", System.lineSeparator());
+		record("flush", 0);
+		String line;
+		try {
+			line = in.readLine();
+			if (negotiating && Compression.TOKEN.equals(line)) {
+				compression.enable();
+				record("deflate", 0);
+				line = in.readLine();
+			}
+			if (line == null) throw new EOFException("Connection ended.");
+		} catch (IOException e) {
+			cache = null; // the session is not recorded until its end
+			throw e;
+		}
+		negotiating = false;
+		record("read", line.length());
+		line = line.replace("$$NEWLINE$$", System.lineSeparator());
+		if (cache != null) {
+			answers.add(line);
+			position++;
+			if (position > ResponseCache.MAX_TURNS) cache = null;
+		}
+		return line;
+	}
+
+	/**
+	 * Enables the compression if the client already asked for it, without
+	 * waiting for its request. The client sends it right after connecting,
+	 * so it is usually received before the first answer is sent.
+	 * @throws IOException if the socket is closed in the meantime.
+	 */
+	private void negotiate() throws IOException {
+		if (!negotiating || !in.ready()) return;
+		char[] token = new char[Compression.TOKEN.length()];
+		int n = 0, r = 0;
+		in.mark(token.length);
+		while (n < token.length && in.ready()
+				&& (r = in.read(token, n, token.length - n)) >= 0) {
+			n += r;
+		}
+		if (n == token.length && Compression.TOKEN.equals(new String(token))) {
+			in.readLine();
+			compression.enable();
+			record("deflate", 0);
+			negotiating = false;
+		} else {
+			in.reset();
+		}
+	}
+
+	/**
+	 * Sends every message of the given publisher, flushing each one to the
+	 * client as soon as it is published. Messages are only requested once
+	 * the previous ones have been handed to the socket, so a slow client slows
+	 * the publisher down instead of growing the buffer. Each message is sent
+	 * on a line of its own ending with {@link #STREAM_MORE}, after the text
+	 * written before, so that the client can display it at once; the
+	 * current answer is still ended by the next {@code read()}.
+	 * @param messages the publisher of the messages to send.
+	 * @throws IOException if the socket is closed in the meantime.
+	 * @throws IllegalStateException if called from an {@link AsyncBRiService}.
+	 */
+	protected final void stream(Flow.Publisher<String> messages)
+			throws IOException {
+		if (in == null) {
+			throw new IllegalStateException(
+					"Blocking stream is not available, use streamAsync()."
+					);
+		}
+		cache = null; // streamed messages are not recorded
+		BlockingQueue<Object> queue = new ArrayBlockingQueue<>(STREAM_WINDOW+1);
+		AtomicReference<Flow.Subscription> subscription
+			= new AtomicReference<>();
+		messages.subscribe(new Flow.Subscriber<String>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription.set(s);
+				s.request(STREAM_WINDOW);
+			}
+			@Override
+			public void onNext(String message) { queue.add(message); }
+			@Override
+			public void onError(Throwable t) { queue.add(t); }
+			@Override
+			public void onComplete() { queue.add(STREAM_END); }
+		});
+
+		do try {
+			Object next = queue.take();
+			if (next == STREAM_END) return;
+			if (next instanceof IOException) throw (IOException) next;
+			if (next instanceof Throwable) {
+				throw new RuntimeException("Stream failed", (Throwable) next);
+			}
+			write(next.toString());
+			out.println(STREAM_MORE);
+			out.flush();
+			record("stream", 0);
+			if (out.checkError()) {
+				subscription.get().cancel();
+				throw new IOException("Connection ended.");
+			}
+			subscription.get().request(1);
+		} catch (InterruptedException e) {
+			Flow.Subscription s = subscription.get();
+			if (s != null) s.cancel(); // unless not subscribed yet
+			Thread.currentThread().interrupt();
+			throw new IOException("Stream interrupted", e);
+		} while (true);
 	}
 
 	/**
@@ -86,6 +424,26 @@ public abstract class BRiService implements Runnable {
 	protected final Socket getClient() {
 		return client;
 	}
+
+	/**
+	 * Getter to the reader of the client socket, for the services speaking
+	 * a protocol of their own. It may hold lines the client sent ahead.
+	 * @return the reader of the client socket, or {@code null} for an
+	 * asynchronous service.
+	 */
+	protected final BufferedReader getReader() {
+		return in;
+	}
+
+	/**
+	 * Getter to the writer of the client socket, for the services speaking
+	 * a protocol of their own. The lines written are compressed if the client
+	 * asked for it, once flushed.
+	 * @return the writer of the client socket.
+	 */
+	protected final PrintWriter getWriter() {
+		return out;
+	}
 	
 	/**
 	 * Gets the string representation of the client socket address.
@@ -99,26 +457,63 @@ public abstract class BRiService implements Runnable {
 	}
 
 	/**
-	 * Closes the resources and end the connection.
+	 * Registers an action to run once the session of a client has ended and
+	 * its socket has been closed by {@link #finish()}.
+	 * @param client the socket of the client.
+	 * @param action the action to run.
+	 */
+	public static void onClose(Socket client, Runnable action) {
+		closeActions.put(client, action);
+	}
+
+	/**
+	 * Unregisters the action to run once a socket is closed.
+	 * @param client the socket of the client.
+	 * @return the action unregistered, or {@code null} if there was none.
+	 */
+	public static Runnable removeOnClose(Socket client) {
+		return closeActions.remove(client);
+	}
+
+	/**
+	 * Closes the resources and end the connection. The socket is closed and
+	 * the session unregistered even if the resources fail to close.
 	 */
 	protected final void finish() {
-		out.flush();
 		try {
-			in.close();
+			if (cache != null && position == answers.size() 
+					&& !out.checkError()) {
+				cache.put(answers, turn.toString(), true);
+			}
+			cache = null;
+			out.flush();
+			if (in != null) in.close();
 			out.close();
-			client.close();
 		} catch (@SuppressWarnings("unused") IOException e) {
 			System.err.println("Connection ended.");
+		} finally {
+			try {client.close();} catch (@SuppressWarnings("unused") IOException e) {}
+			Runnable action = closeActions.remove(client);
+			if (action != null) action.run();
+			if (trace != null && finished.compareAndSet(false, true)) {
+				record("finish", 0);
+				trace.close();
+				event.id = trace.getId();
+				event.service = getClass().getSimpleName();
+				event.clientAddress = getClientAddress();
+				event.commit();
+			}
 		}
 	}
 	
 	@Override
 	protected void finalize() {
-		finish();
+		if (!handedOff) finish();
 	}
 
 	/**
-	 * Verify if a given class respects the BRi standard.
+	 * Verify if a given class respects the BRi standard. Both blocking
+	 * services and {@link AsyncBRiService asynchronous} ones are accepted.
 	 * @param clazz the class to verify.
 	 * @throws NotBRiNormalizedException if the class does not respects the BRi
 	 * standard, with further information in the exception message
@@ -131,7 +526,7 @@ public abstract class BRiService implements Runnable {
 			sClazz = sClazz.getSuperclass();
 			if (sClazz == null || sClazz.equals(Object.class)) {
 				throw new NotBRiNormalizedException(
-						"The class should extends BRiService."
+						"The class should extends BRiService or AsyncBRiService."
 						);
 			}
 		} while (! sClazz.equals(BRiService.class));
@@ -169,6 +564,21 @@ public abstract class BRiService implements Runnable {
 							+ "toStringue() method with no throws."
 					);
 		}
+
+		Cacheable cacheable = clazz.getAnnotation(Cacheable.class);
+		if (cacheable != null) {
+			if (AsyncBRiService.class.isAssignableFrom(clazz)) {
+				throw new NotBRiNormalizedException(
+						"An asynchronous service can't be cacheable."
+						);
+			}
+			if (cacheable.ttl() <= 0 || cacheable.maxEntries() <= 0) {
+				throw new NotBRiNormalizedException(
+						"A cacheable service should declare a positive ttl"
+								+ " and maxEntries."
+						);
+			}
+		}
 	}
 
 	public static class NotBRiNormalizedException extends Exception {
@@ -0,0 +1,39 @@
+package com.briplatform.server.resources;
+
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a service as cacheable, i.e. answering the same way each time it
+ * receives the same answers from the client. The platform then memoizes its
+ * messages, keyed by the service version and the answers received so far,
+ * and replays them without instantiating the service whenever it can.
+ * <p>
+ * Only blocking services may be cacheable, and their messages must not
+ * depend on anything but the client answers: time, randomness, or any state
+ * shared between sessions.
+ *
+ * @author Lucas Pinard
+ */
+@Documented
+@Retention(RUNTIME)
+@Target(TYPE)
+public @interface Cacheable {
+
+	/**
+	 * Time a message stays cached, in seconds.
+	 * @return the time a message stays cached.
+	 */
+	long ttl() default 60;
+
+	/**
+	 * Maximum number of messages cached for the service, the least recently
+	 * used being evicted first.
+	 * @return the maximum number of messages cached.
+	 */
+	int maxEntries() default 1024;
+}
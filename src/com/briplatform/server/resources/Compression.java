@@ -0,0 +1,132 @@
+package com.briplatform.server.resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * The Compression class encodes the lines sent to a client which asked for
+ * compression, by sending {@link #TOKEN} alone on a line once connected.
+ * From then on, any line of at least {@link #THRESHOLD} characters is
+ * deflated and sent in base 64 after {@link #TOKEN}, as long as it is
+ * shorter this way. Other lines, and lines whose beginning was already
+ * streamed, are sent as is, except those starting like {@link #TOKEN}: they
+ * are sent after {@link #TOKEN} and {@link #ESCAPE}, which never starts a
+ * base 64 text.
+ *
+ * @author Lucas Pinard
+ */
+final class Compression {
+
+	/** Line asking for compression, and prefix of the compressed lines. */
+	static final String TOKEN = "$$DEFLATE$$";
+
+	/** Mark following {@link #TOKEN} in a line sent as is. */
+	static final String ESCAPE = "!";
+
+	/** Length under which a line is not worth compressing. */
+	static final int THRESHOLD = 512;
+
+	/** Whether the client asked for compression. */
+	private volatile boolean enabled = false;
+
+	/** Whether the beginning of the current line was already sent. */
+	private boolean started = false;
+
+	/**
+	 * Checks whether the client asked for compression.
+	 * @return {@code true} if lines may be compressed, {@code false}
+	 * otherwise.
+	 */
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Allows the following lines to be compressed. */
+	void enable() {
+		enabled = true;
+	}
+
+	/**
+	 * Encodes the given text, which ends either by a complete line or by the
+	 * beginning of a line to be continued.
+	 * @param text the text to send.
+	 * @return the text to write on the socket.
+	 */
+	String encode(String text) {
+		if (!enabled) return text;
+		StringBuilder sb = new StringBuilder(text.length());
+		int start = 0, end;
+		while ((end = text.indexOf('\n', start)) >= 0) {
+			int stop = end > start && text.charAt(end-1) == '\r' ? end-1 : end;
+			String line = text.substring(start, stop);
+			String sent = started || !line.startsWith(TOKEN) ?
+					line : TOKEN + ESCAPE + line;
+			if (!started && line.length() >= THRESHOLD) {
+				String deflated = TOKEN + deflate(line);
+				if (deflated.length() < sent.length()) sent = deflated;
+			}
+			sb.append(sent);
+			sb.append(text, stop, end+1);
+			started = false;
+			start = end+1;
+		}
+		if (start < text.length()) {
+			String beginning = text.substring(start);
+			// the end of the line may complete the token
+			boolean escaped = !started && (beginning.startsWith(TOKEN)
+					|| TOKEN.startsWith(beginning));
+			sb.append(escaped ? TOKEN + ESCAPE + beginning : beginning);
+			started = true;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Wraps a writer so that the text is encoded by this compression each
+	 * time it is flushed.
+	 * @param sink the writer to wrap.
+	 * @return the wrapping writer.
+	 */
+	Writer wrap(Writer sink) {
+		return new Writer() {
+			private final StringBuilder buffer = new StringBuilder();
+
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				buffer.append(cbuf, off, len);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				sink.write(encode(buffer.toString()));
+				buffer.setLength(0);
+				sink.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+				sink.close();
+			}
+		};
+	}
+
+	/**
+	 * Deflates a line and encodes it in base 64.
+	 * @param line the line to compress.
+	 * @return the compressed line.
+	 */
+	private static String deflate(String line) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DeflaterOutputStream d = new DeflaterOutputStream(bytes)) {
+			d.write(line.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to compress", e);
+		}
+		return Base64.getEncoder().encodeToString(bytes.toByteArray());
+	}
+}
@@ -0,0 +1,145 @@
+package com.briplatform.server.resources;
+
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The LoaderTracker class follows the {@link ServiceClassLoader}s through
+ * weak references, from their creation until they are unloaded. A loader
+ * which was released when its service was uninstalled, but is still
+ * reachable {@link #GRACE} milliseconds later, is reported as retained:
+ * something still holds its classes, and their metaspace is never
+ * reclaimed.
+ *
+ * @author Lucas Pinard
+ */
+public final class LoaderTracker {
+
+	/** Delay after which a released loader still reachable is retained. */
+	private static final long GRACE = 60_000;
+
+	/** Queue where the references of unloaded loaders are enqueued. */
+	private static final ReferenceQueue<ServiceClassLoader> queue
+		= new ReferenceQueue<>();
+
+	/** <i>Thread-safe. </i>References of the loaders not unloaded yet. */
+	private static final Set<Ref> refs = ConcurrentHashMap.newKeySet();
+
+	/** Number of tracked loaders which were unloaded. */
+	private static final AtomicLong unloaded = new AtomicLong();
+
+	/** Forbid access to the LoaderTracker default constructor. */
+	private LoaderTracker() {}
+
+	/**
+	 * Starts tracking a new loader.
+	 * @param loader the loader to track.
+	 * @param programmer the username of the programmer of its service.
+	 * @param service the name of its service.
+	 * @return the tracking reference of the loader.
+	 */
+	static Ref track(ServiceClassLoader loader, String programmer,
+			String service) {
+		poll();
+		Ref ref = new Ref(loader, programmer, service);
+		refs.add(ref);
+		return ref;
+	}
+
+	/**
+	 * Marks a loader as released, i.e. expected to be unloaded.
+	 * @param ref the tracking reference of the loader.
+	 */
+	static void release(Ref ref) {
+		ref.released = System.currentTimeMillis();
+	}
+
+	/** Forgets the loaders which were unloaded. */
+	private static void poll() {
+		Reference<? extends ServiceClassLoader> r;
+		while ((r = queue.poll()) != null) {
+			if (refs.remove(r)) unloaded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Builds a String reporting the loaders of a programmer's services, and
+	 * the metaspace usage of the whole platform.
+	 * @param programmer the username of the programmer.
+	 * @return the built String
+	 */
+	public static String report(String programmer) {
+		poll();
+		long now = System.currentTimeMillis();
+		Map<String, int[]> services = new TreeMap<>();
+		int retained = 0;
+		for (Ref ref : refs) {
+			ServiceClassLoader loader = ref.get();
+			if (loader == null) continue;
+			boolean leaked = ref.released != 0 && now - ref.released > GRACE;
+			if (leaked) retained++;
+			if (!ref.programmer.equals(programmer)) continue;
+			// live loaders, classes, retained loaders
+			int[] counts = services.computeIfAbsent(ref.service, s -> new int[3]);
+			if (ref.released == 0) {
+				counts[0]++;
+				counts[1] += loader.getClassCount();
+			} else if (leaked) {
+				counts[2]++;
+			}
+		}
+
+		StringBuilder sb = new StringBuilder("Loaders :");
+		services.forEach((service, counts) -> {
+			sb.append(System.lineSeparator()).append(String.format(
+					"%s - %d loader(s), %d class(es)",
+					service, counts[0], counts[1]
+					));
+			if (counts[2] > 0) {
+				sb.append(String.format(
+						", %d released loader(s) retained", counts[2]
+						));
+			}
+		});
+
+		long metaspace = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getName().equals("Metaspace")) {
+				metaspace = pool.getUsage().getUsed();
+			}
+		}
+		ClassLoadingMXBean classes = ManagementFactory.getClassLoadingMXBean();
+		sb.append(System.lineSeparator()).append(String.format(
+				"Platform - %d loader(s) tracked, %d retained, %d unloaded, "
+				+ "%d KB of metaspace, %d classes loaded, %d unloaded",
+				refs.size(), retained, unloaded.get(), metaspace / 1024,
+				classes.getLoadedClassCount(),
+				classes.getUnloadedClassCount()
+				));
+		return sb.toString();
+	}
+
+	/** A weak reference to a tracked loader. */
+	static final class Ref extends WeakReference<ServiceClassLoader> {
+		final String programmer;
+		final String service;
+
+		/** Time the loader was released, or 0 while it is in use. */
+		volatile long released = 0;
+
+		Ref(ServiceClassLoader loader, String programmer, String service) {
+			super(loader, queue);
+			this.programmer = programmer;
+			this.service = service;
+		}
+	}
+}
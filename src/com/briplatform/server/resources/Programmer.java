@@ -1,17 +1,28 @@
 package com.briplatform.server.resources;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLClassLoader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 import com.briplatform.server.resources.BRiService.NotBRiNormalizedException;
 
@@ -23,6 +34,12 @@ import com.briplatform.server.resources.BRiService.NotBRiNormalizedException;
  */
 public class Programmer implements Serializable {
 
+	/**
+	 * Attribute of a JAR manifest listing the names of the services of the
+	 * JAR, separated by spaces or commas.
+	 */
+	public static final String MANIFEST_ATTRIBUTE = "BRi-Services";
+
 	/**
 	 * Algorith to hash password.
 	 */
@@ -55,6 +72,12 @@ public class Programmer implements Serializable {
 	 */
 	private Map<String, Class<? extends BRiService>> services;
 
+	/**
+	 * Loaders of the services installed by this programmer, which are
+	 * released when their service is uninstalled.
+	 */
+	private transient Map<String, ServiceClassLoader> loaders;
+
 	/**
 	 * Creates a new programmer.
 	 * @param username This programmer's username.
@@ -70,6 +93,7 @@ public class Programmer implements Serializable {
 		this.password = hash.digest(password.getBytes(StandardCharsets.UTF_8));
 		this.FTPLocation = new URL(url);
 		this.services = new HashMap<>();
+		this.loaders = new HashMap<>();
 	}
 
 	/**
@@ -159,7 +183,6 @@ public class Programmer implements Serializable {
 		this.FTPLocation = new URL(url);
 	}
 
-	@SuppressWarnings("unchecked")
 	/**
 	 * Tries to add the service to this programmer's installed services from
 	 * his FTP directory.
@@ -170,14 +193,9 @@ public class Programmer implements Serializable {
 	 */
 	public void addService(String name) 
 			throws ClassNotFoundException, NotBRiNormalizedException {
-		URLClassLoader loader = new URLClassLoader(new URL[] {FTPLocation});
-		Class<?> service = loader.loadClass(username+"."+name);
-		BRiService.verifyBRiValidity(service);
-		services.put(name, (Class<? extends BRiService>) service);
-		try {loader.close();} catch (IOException e) {e.printStackTrace();}
+		load(name, "class", FTPLocation);
 	}
 
-	@SuppressWarnings("unchecked")
 	/**
 	 * Tries to add the service to this programmer's installed services from a
 	 * JAR file of same name located in this programmer's FTP directory.
@@ -189,22 +207,186 @@ public class Programmer implements Serializable {
 	public void addServiceFromJAR(String name) 
 			throws ClassNotFoundException, NotBRiNormalizedException, 
 			MalformedURLException {
-		URLClassLoader loader = new URLClassLoader(
-				new URL[] {new URL(FTPLocation, name+".jar")}
-				);
-		Class<?> service = loader.loadClass(username+"."+name);
-		BRiService.verifyBRiValidity(service);
-		services.put(name, (Class<? extends BRiService>) service);
-		try {loader.close();} catch (IOException e) {e.printStackTrace();}
+		load(name, "jar", new URL(FTPLocation, name+".jar"));
+	}
+
+	/**
+	 * Tries to add all the services listed by the {@value #MANIFEST_ATTRIBUTE}
+	 * attribute of the manifest of a JAR file located in this programmer's
+	 * FTP directory. The JAR file is downloaded once, and its services are
+	 * verified concurrently in a loader they share. Either all of them are
+	 * installed, in place of the services of same name, or none is.
+	 * @param jar the name of the JAR file, without its extension.
+	 * @param activate whether to activate the services added, in the same
+	 * registry update which deactivates the services they replace.
+	 * @return the names of the services added.
+	 * @throws ClassNotFoundException if a service can't be found.
+	 * @throws NotBRiNormalizedException if a service does not respect the
+	 * BRiPlatform standard, or if the JAR file lists no service.
+	 * @throws IOException if the JAR file can't be downloaded or read.
+	 * @throws java.util.concurrent.CompletionException if a class of the JAR
+	 * file can't be loaded, caused by the error raised.
+	 */
+	@SuppressWarnings("unchecked")
+	public List<String> addServicesFromManifest(String jar, boolean activate) 
+			throws ClassNotFoundException, NotBRiNormalizedException, 
+			IOException {
+		ServiceLoadEvent event = new ServiceLoadEvent();
+		event.begin();
+		event.programmer = username;
+		event.service = jar;
+		event.source = "manifest";
+		Path copy = Files.createTempFile("bri-" + username + "-", ".jar");
+		ServiceClassLoader loader = null;
+		try {
+			try (InputStream in = new URL(FTPLocation, jar+".jar").openStream()) {
+				Files.copy(in, copy, StandardCopyOption.REPLACE_EXISTING);
+			}
+			List<String> names = readManifest(copy);
+			loader = new ServiceClassLoader(
+					username, jar, copy.toUri().toURL(), copy
+					);
+			List<Class<?>> loaded = verifyAll(loader, names);
+
+			List<Class<? extends BRiService>> added = new ArrayList<>();
+			List<Class<? extends BRiService>> replaced = new ArrayList<>();
+			List<ServiceClassLoader> released = new ArrayList<>();
+			for (int i = 0; i < names.size(); i++) {
+				Class<? extends BRiService> service 
+					= (Class<? extends BRiService>) loaded.get(i);
+				Class<? extends BRiService> old 
+					= services.put(names.get(i), service);
+				if (old != null) replaced.add(old);
+				ServiceClassLoader l = loaders.put(names.get(i), loader);
+				if (l != null) released.add(l);
+				loader.share();
+				added.add(service);
+			}
+			Registry.getInstance().updateServices(
+					replaced, activate ? added : List.of()
+					);
+			released.forEach(ServiceClassLoader::release);
+			event.loaded = true;
+			return names;
+		} finally {
+			// the services added hold the loader, which deletes the copy
+			if (loader != null) loader.release();
+			else Files.deleteIfExists(copy);
+			event.commit();
+		}
+	}
+
+	/**
+	 * Reads the names of the services listed by the manifest of a JAR file.
+	 * @param jar the JAR file.
+	 * @return the names of the services, without duplicates.
+	 * @throws NotBRiNormalizedException if the JAR file lists no service.
+	 * @throws IOException if the JAR file can't be read.
+	 */
+	private static List<String> readManifest(Path jar) 
+			throws NotBRiNormalizedException, IOException {
+		try (JarFile file = new JarFile(jar.toFile())) {
+			Manifest manifest = file.getManifest();
+			String list = manifest == null ? null 
+					: manifest.getMainAttributes().getValue(MANIFEST_ATTRIBUTE);
+			if (list == null || list.isBlank()) {
+				throw new NotBRiNormalizedException(
+						"The JAR should list its services in its " 
+						+ MANIFEST_ATTRIBUTE + " manifest attribute."
+						);
+			}
+			return new ArrayList<>(new LinkedHashSet<>(
+					Arrays.asList(list.trim().split("[\\s,]+"))
+					));
+		}
 	}
 
 	/**
-	 * Uninstalls a service from this programmer's list of services.
+	 * Loads and verifies services concurrently.
+	 * @param loader the loader of the services.
+	 * @param names the names of the services.
+	 * @return the services, in the order of their names.
+	 * @throws ClassNotFoundException if a service can't be found.
+	 * @throws NotBRiNormalizedException if a service does not respect the
+	 * BRiPlatform standard.
+	 */
+	private List<Class<?>> verifyAll(ServiceClassLoader loader, 
+			List<String> names) 
+			throws ClassNotFoundException, NotBRiNormalizedException {
+		List<CompletableFuture<Class<?>>> checks = new ArrayList<>();
+		for (String name : names) {
+			checks.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					Class<?> service = loader.loadClass(username+"."+name);
+					BRiService.verifyBRiValidity(service);
+					return service;
+				} catch (NotBRiNormalizedException e) {
+					throw new CompletionException(new NotBRiNormalizedException(
+							name + " : " + e.getMessage()
+							));
+				} catch (ClassNotFoundException e) {
+					throw new CompletionException(e);
+				}
+			}));
+		}
+		List<Class<?>> loaded = new ArrayList<>();
+		for (CompletableFuture<Class<?>> check : checks) try {
+			loaded.add(check.join());
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof ClassNotFoundException) {
+				throw (ClassNotFoundException) e.getCause();
+			}
+			if (e.getCause() instanceof NotBRiNormalizedException) {
+				throw (NotBRiNormalizedException) e.getCause();
+			}
+			throw e;
+		}
+		return loaded;
+	}
+
+	@SuppressWarnings("unchecked")
+	/**
+	 * Loads a service in a loader of its own, and installs it in place of
+	 * the service of same name, if any.
+	 * @param name the name of the service to add
+	 * @param source the kind of location of the service.
+	 * @param location the URL of the directory or JAR file of the service.
+	 * @throws ClassNotFoundException if no service can be found.
+	 * @throws NotBRiNormalizedException if the service is does not respect the
+	 * BRiPlatform standard.
+	 */
+	private void load(String name, String source, URL location) 
+			throws ClassNotFoundException, NotBRiNormalizedException {
+		ServiceLoadEvent event = new ServiceLoadEvent();
+		event.begin();
+		event.programmer = username;
+		event.service = name;
+		event.source = source;
+		ServiceClassLoader loader
+			= new ServiceClassLoader(username, name, location);
+		try {
+			Class<?> service = loader.loadClass(username+"."+name);
+			BRiService.verifyBRiValidity(service);
+			removeService(name);
+			services.put(name, (Class<? extends BRiService>) service);
+			loaders.put(name, loader);
+			event.loaded = true;
+		} finally {
+			if (!event.loaded) loader.release();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Uninstalls a service from this programmer's list of services, and
+	 * releases its loader.
 	 * @param name the name of the service to remove.
 	 */
 	public void removeService(String name) {
 		deactivateService(name);
 		services.remove(name);
+		ServiceClassLoader loader = loaders.remove(name);
+		if (loader != null) loader.release();
 	}
 
 	/**
@@ -213,7 +395,8 @@ public class Programmer implements Serializable {
 	 * @see Registry
 	 */
 	public void activateService(String name) {
-		Registry.getInstance().addService(services.get(name));
+		Class<? extends BRiService> service = services.get(name);
+		if (service != null) Registry.getInstance().addService(service);
 	}
 
 	/**
@@ -222,6 +405,20 @@ public class Programmer implements Serializable {
 	 * @see Registry
 	 */
 	public void deactivateService(String name) {
-		Registry.getInstance().removeService(services.get(name));
+		Class<? extends BRiService> service = services.get(name);
+		if (service != null) Registry.getInstance().removeService(service);
+	}
+
+	/**
+	 * Restores a serialized programmer. The loaders of its services are not
+	 * serialized: it starts with none.
+	 * @param in the stream to read from.
+	 * @throws IOException if the stream could not be read.
+	 * @throws ClassNotFoundException if a serialized class is unknown.
+	 */
+	private void readObject(ObjectInputStream in) 
+			throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		this.loaders = new HashMap<>();
 	}
 }
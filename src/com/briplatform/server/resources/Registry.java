@@ -1,7 +1,11 @@
  package com.briplatform.server.resources;
 
 import java.net.MalformedURLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -24,15 +28,19 @@ public class Registry {
 		return Registry.instance;
 	}
 
-	/** <i>Thread-safe. </i>Maps the installed services to their name. */
-	private Map<String, Class<? extends BRiService>> services;
+	/**
+	 * <i>Thread-safe. </i>Maps the installed services to their name. The map
+	 * is never modified but replaced as a whole, so that several services
+	 * may be installed or removed at once.
+	 */
+	private volatile Map<String, Class<? extends BRiService>> services;
 
 	/** <i>Thread-safe. </i>Maps the registered services to their username. */
 	private Map<String, Programmer> programmers;
 
 	/** Private constructor to prevent instantitation. */
 	private Registry() {
-		this.services = new ConcurrentHashMap<>();
+		this.services = Collections.emptyMap();
 		this.programmers = new ConcurrentHashMap<>();
 	}
 
@@ -67,15 +75,36 @@ public class Registry {
 	 * @param service the service to add.
 	 */
 	public void addService(Class<? extends BRiService> service) {
-		services.put(service.getSimpleName(), service);
+		updateServices(List.of(), List.of(service));
 	}
 	
 	/**
-	 * Removes a service from the BRiPlatform registry.
+	 * Removes a service from the BRiPlatform registry, unless another service
+	 * of same name has replaced it.
 	 * @param service the service to remove.
 	 */
 	public void removeService(Class<? extends BRiService> service) {
-		services.remove(service.getSimpleName());
+		updateServices(List.of(service), List.of());
+	}
+
+	/**
+	 * Removes then adds services to the BRiPlatform registry in a single
+	 * update, so that no client ever sees only part of it.
+	 * @param removed the services to remove, unless another service of same
+	 * name has replaced them.
+	 * @param added the services to add.
+	 */
+	public synchronized void updateServices(
+			Collection<Class<? extends BRiService>> removed,
+			Collection<Class<? extends BRiService>> added) {
+		Map<String, Class<? extends BRiService>> next = new HashMap<>(services);
+		for (Class<? extends BRiService> s : removed) {
+			next.remove(s.getSimpleName(), s);
+		}
+		for (Class<? extends BRiService> s : added) {
+			next.put(s.getSimpleName(), s);
+		}
+		services = Collections.unmodifiableMap(next);
 	}
 
 	/**
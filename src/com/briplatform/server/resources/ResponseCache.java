@@ -0,0 +1,97 @@
+package com.briplatform.server.resources;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ResponseCache class holds the messages of a {@link Cacheable} service,
+ * keyed by the client answers which led to them. A cache is bound to a
+ * service class, thus to a service version: it is never shared with the
+ * updated versions of the service, and goes away with its class once the
+ * service is uninstalled.
+ *
+ * @author Lucas Pinard
+ */
+final class ResponseCache {
+
+	/** Number of answers after which a session is no longer recorded. */
+	static final int MAX_TURNS = 64;
+
+	/** Maps the caches to their service class, if it is cacheable. */
+	private static final ClassValue<ResponseCache> caches
+		= new ClassValue<ResponseCache>() {
+		@Override
+		protected ResponseCache computeValue(Class<?> type) {
+			Cacheable c = type.getAnnotation(Cacheable.class);
+			return c == null ? null : new ResponseCache(c);
+		}
+	};
+
+	/**
+	 * Gets the cache of a service.
+	 * @param service the service class.
+	 * @return the cache of the service if it is cacheable, {@code null}
+	 * otherwise.
+	 */
+	static ResponseCache of(Class<?> service) {
+		return caches.get(service);
+	}
+
+	/** Time a message stays cached, in nanoseconds. */
+	private final long ttl;
+
+	/** Maps the messages to the answers which led to them, in LRU order. */
+	private final Map<List<String>, Response> responses;
+
+	private ResponseCache(Cacheable config) {
+		this.ttl = config.ttl() * 1_000_000_000L;
+		int max = config.maxEntries();
+		this.responses = new LinkedHashMap<List<String>, Response>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<List<String>, Response> eldest) {
+				return size() > max;
+			}
+		};
+	}
+
+	/**
+	 * Gets the message sent after the given answers.
+	 * @param answers the client answers received so far.
+	 * @return the message if it is cached and fresh, {@code null} otherwise.
+	 */
+	synchronized Response get(List<String> answers) {
+		Response r = responses.get(answers);
+		if (r != null && System.nanoTime() - r.expires > 0) {
+			responses.remove(answers);
+			return null;
+		}
+		return r;
+	}
+
+	/**
+	 * Caches the message sent after the given answers.
+	 * @param answers the client answers received so far.
+	 * @param message the message sent, as written on the socket.
+	 * @param last whether the service ended the connection after it.
+	 */
+	synchronized void put(List<String> answers, String message, boolean last) {
+		responses.put(List.copyOf(answers),
+				new Response(message, last, System.nanoTime() + ttl)
+				);
+	}
+
+	/** A cached message. */
+	static final class Response {
+		final String message;
+		final boolean last;
+		final long expires;
+
+		Response(String message, boolean last, long expires) {
+			this.message = message;
+			this.last = last;
+			this.expires = expires;
+		}
+	}
+}
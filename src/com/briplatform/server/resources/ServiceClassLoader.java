@@ -0,0 +1,112 @@
+package com.briplatform.server.resources;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ServiceClassLoader class loads the classes of an installed service, or
+ * of the services installed together from a JAR manifest, and stays open
+ * while any of them is installed. It is tracked by the {@link LoaderTracker}
+ * from its creation until it is unloaded.
+ *
+ * @author Lucas Pinard
+ */
+final class ServiceClassLoader extends URLClassLoader {
+
+	static {
+		// services of a same JAR are verified concurrently
+		registerAsParallelCapable();
+	}
+
+	/** Number of classes defined by this loader. */
+	private final AtomicInteger classes = new AtomicInteger();
+
+	/** Tracking reference of this loader. */
+	private final LoaderTracker.Ref ref;
+
+	/**
+	 * Number of users of this loader: its creator, then each service
+	 * installed from it.
+	 */
+	private final AtomicInteger users = new AtomicInteger(1);
+
+	/** Local copy of the JAR file loaded from, deleted with this loader. */
+	private final Path copy;
+
+	/** Username of the programmer of the services. */
+	private final String programmer;
+
+	/**
+	 * Creates a new loader for the given service.
+	 * @param programmer the username of the programmer of the service.
+	 * @param service the name of the service.
+	 * @param location the URL of the directory or JAR file of the service.
+	 */
+	ServiceClassLoader(String programmer, String service, URL location) {
+		this(programmer, service, location, null);
+	}
+
+	/**
+	 * Creates a new loader for the given services.
+	 * @param programmer the username of the programmer of the services.
+	 * @param name the name of the service, or of the JAR of the services.
+	 * @param location the URL of the directory or JAR file of the services.
+	 * @param copy the local copy of the JAR file to delete once this loader
+	 * is released, or {@code null}.
+	 */
+	ServiceClassLoader(String programmer, String name, URL location,
+			Path copy) {
+		super(programmer + "." + name, new URL[] {location},
+				ServiceClassLoader.class.getClassLoader());
+		this.ref = LoaderTracker.track(this, programmer, name);
+		this.copy = copy;
+		this.programmer = programmer;
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		Class<?> c = super.findClass(name);
+		classes.incrementAndGet();
+		return c;
+	}
+
+	/**
+	 * Gets the username of the programmer of the services.
+	 * @return the username of the programmer of the services.
+	 */
+	String getProgrammer() {
+		return programmer;
+	}
+
+	/**
+	 * Gets the number of classes defined by this loader.
+	 * @return the number of classes defined by this loader.
+	 */
+	int getClassCount() {
+		return classes.get();
+	}
+
+	/** Adds a user of this loader, which must release it in turn. */
+	void share() {
+		users.incrementAndGet();
+	}
+
+	/**
+	 * Closes this loader once its last user has released it, after which it
+	 * is expected to be unloaded by the next garbage collections.
+	 */
+	void release() {
+		if (users.decrementAndGet() > 0) return;
+		try {
+			close();
+			if (copy != null) Files.deleteIfExists(copy);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		LoaderTracker.release(ref);
+	}
+}
@@ -0,0 +1,33 @@
+package com.briplatform.server.resources;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of a service loaded from a programmer's FTP server,
+ * lasting until its class has been loaded and verified.
+ *
+ * @author Lucas Pinard
+ */
+@Name("com.briplatform.ServiceLoad")
+@Label("Service Load")
+@Category("BRiPlatform")
+@Description("A service class loaded from a programmer's FTP server")
+class ServiceLoadEvent extends jdk.jfr.Event {
+
+	@Label("Programmer")
+	String programmer;
+
+	@Label("Service")
+	String service;
+
+	@Label("Source")
+	@Description("Whether the service was loaded from a class, a JAR or a JAR manifest")
+	String source;
+
+	@Label("Loaded")
+	@Description("Whether the class was found and respects the BRi standard")
+	boolean loaded;
+}
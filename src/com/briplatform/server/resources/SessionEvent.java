@@ -0,0 +1,30 @@
+package com.briplatform.server.resources;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event of a client session, lasting from the start of its
+ * first service until the connection is closed.
+ *
+ * @author Lucas Pinard
+ */
+@Name("com.briplatform.Session")
+@Label("Session")
+@Category("BRiPlatform")
+@Description("A client session, through every service it was handed to")
+class SessionEvent extends jdk.jfr.Event {
+
+	@Label("Session Id")
+	@Description("Id of the session trace, to be dumped from ProgService")
+	long id;
+
+	@Label("Service")
+	@Description("The last service which served the session")
+	String service;
+
+	@Label("Client Address")
+	String clientAddress;
+}
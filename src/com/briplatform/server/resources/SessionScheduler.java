@@ -0,0 +1,157 @@
+package com.briplatform.server.resources;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The SessionScheduler class runs the sessions of a class of clients on
+ * threads of its own, at a given priority and up to a given number at once.
+ * A scheduler is {@link #bind(int) bound} to the port of its clients, so
+ * that the threads reserved to a class of clients can't be taken by
+ * another: a session started while its scheduler is full is refused at once
+ * rather than queued. Threads are kept a while once their session is over,
+ * to serve the next ones.
+ * <p>
+ * Sessions of a port no scheduler is bound to run on the {@link #DEFAULT}
+ * scheduler, which is unbounded.
+ *
+ * @author Lucas Pinard
+ */
+public final class SessionScheduler {
+
+	/** Scheduler of the sessions of the ports no scheduler is bound to. */
+	public static final SessionScheduler DEFAULT
+		= new SessionScheduler("BRi-session", Integer.MAX_VALUE,
+				Thread.NORM_PRIORITY);
+
+	/** Time an idle thread is kept for the next sessions, in seconds. */
+	private static final long KEEP_ALIVE = 60;
+
+	/** <i>Thread-safe. </i>Maps the schedulers to the port they are bound to. */
+	private static final Map<Integer, SessionScheduler> bound
+		= new ConcurrentHashMap<>();
+
+	/** Name of this scheduler, prefixing the names of its threads. */
+	private final String name;
+
+	/** Maximum number of sessions run at once. */
+	private final int capacity;
+
+	/** Priority of the threads running the sessions. */
+	private final int priority;
+
+	/** Number of threads created so far, to name them. */
+	private final AtomicInteger threads = new AtomicInteger();
+
+	/** The executor running the sessions, one thread each. */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Creates a new scheduler.
+	 * @param name the name of the scheduler, prefixing the names of its
+	 * threads.
+	 * @param capacity the maximum number of sessions run at once.
+	 * @param priority the priority of the threads running the sessions,
+	 * between {@link Thread#MIN_PRIORITY} and {@link Thread#MAX_PRIORITY}.
+	 * @throws IllegalArgumentException if the capacity is not positive or the
+	 * priority is out of range.
+	 */
+	public SessionScheduler(String name, int capacity, int priority) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity should be positive.");
+		}
+		if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+			throw new IllegalArgumentException("Priority is out of range.");
+		}
+		this.name = name;
+		this.capacity = capacity;
+		this.priority = priority;
+		this.executor = new ThreadPoolExecutor(
+				0, capacity, KEEP_ALIVE, TimeUnit.SECONDS,
+				new SynchronousQueue<>(),
+				r -> {
+					Thread t = new Thread(r, name + "-" + threads.incrementAndGet());
+					t.setPriority(priority);
+					return t;
+				});
+	}
+
+	/**
+	 * Binds this scheduler to a port, so that it runs the sessions of the
+	 * clients connected to it.
+	 * @param port the port.
+	 */
+	public void bind(int port) {
+		bound.put(port, this);
+	}
+
+	/**
+	 * Gets the scheduler bound to a port.
+	 * @param port the port.
+	 * @return the scheduler bound to the port, or {@link #DEFAULT} if none is.
+	 */
+	public static SessionScheduler of(int port) {
+		return bound.getOrDefault(port, DEFAULT);
+	}
+
+	/**
+	 * Runs a session, or a task serving sessions, on a thread of this
+	 * scheduler, unless it is full.
+	 * @param session the session to run.
+	 * @return {@code true} if the session was started, {@code false} if it
+	 * was refused.
+	 */
+	public boolean tryExecute(Runnable session) {
+		try {
+			executor.execute(session);
+			return true;
+		} catch (@SuppressWarnings("unused") RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether this scheduler runs as many sessions as it can.
+	 * @return {@code true} if it is full, {@code false} otherwise.
+	 */
+	public boolean isFull() {
+		return executor.getActiveCount() >= capacity;
+	}
+
+	/**
+	 * Gets the name of this scheduler.
+	 * @return the name of this scheduler.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Gets the maximum number of sessions run at once.
+	 * @return the maximum number of sessions run at once.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the priority of the threads running the sessions.
+	 * @return the priority of the threads running the sessions.
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Gets the number of sessions running, approximately.
+	 * @return the number of sessions running.
+	 */
+	public int getActiveSessions() {
+		return executor.getActiveCount();
+	}
+}
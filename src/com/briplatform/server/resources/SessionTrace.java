@@ -0,0 +1,171 @@
+package com.briplatform.server.resources;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The SessionTrace class is a flight recorder of the protocol events of a
+ * client session. It keeps the {@link #CAPACITY} most recent events in a ring
+ * buffer which is written without locking, so that recording costs next to
+ * nothing, and which can be dumped at any time while the session is alive.
+ * <p>
+ * Only the kind, size and time of the events are recorded, never the content
+ * of the messages. A session may only be looked up by the programmer of the
+ * service serving it.
+ *
+ * @author Lucas Pinard
+ */
+public final class SessionTrace {
+
+	/** Number of events kept by each trace. */
+	private static final int CAPACITY = 128;
+
+	/** Generator of the session ids. */
+	private static final AtomicLong ids = new AtomicLong();
+
+	/** <i>Thread-safe. </i>Maps the traces of live sessions to their id. */
+	private static final Map<Long, SessionTrace> live = new ConcurrentHashMap<>();
+
+	/** Id of the traced session. */
+	private final long id;
+
+	/** Address of the client of the traced session. */
+	private final String clientAddress;
+
+	/** Time the session was opened, in nanoseconds. */
+	private final long opened = System.nanoTime();
+
+	/** Sequence number of the next event. */
+	private final AtomicLong next = new AtomicLong();
+
+	/** The ring buffer of events, indexed by sequence number. */
+	private final AtomicReferenceArray<Entry> entries
+		= new AtomicReferenceArray<>(CAPACITY);
+
+	/** Name of the last service which served the session. */
+	private volatile String service;
+
+	/** Username of the programmer of that service, if any. */
+	private volatile String owner;
+
+	private SessionTrace(String clientAddress) {
+		this.id = ids.incrementAndGet();
+		this.clientAddress = clientAddress;
+	}
+
+	/**
+	 * Opens the trace of a new session, and registers it until it is closed.
+	 * @param clientAddress the address of the client.
+	 * @return the trace opened.
+	 */
+	static SessionTrace open(String clientAddress) {
+		SessionTrace trace = new SessionTrace(clientAddress);
+		live.put(trace.id, trace);
+		return trace;
+	}
+
+	/** Unregisters this trace once its session has ended. */
+	void close() {
+		live.remove(id);
+	}
+
+	/**
+	 * Gets the trace of a live session served by a service of a programmer.
+	 * @param id the id of the session.
+	 * @param programmer the username of the programmer.
+	 * @return the trace of the session if it is alive and served by a
+	 * service of the programmer, {@code null} otherwise.
+	 */
+	public static SessionTrace get(long id, String programmer) {
+		SessionTrace t = live.get(id);
+		return t != null && programmer.equals(t.owner) ? t : null;
+	}
+
+	/**
+	 * Builds a String containing a list of the live sessions served by the
+	 * services of a programmer.
+	 * @param programmer the username of the programmer.
+	 * @return the built String
+	 */
+	public static String getSessionList(String programmer) {
+		StringBuilder sb = new StringBuilder("Sessions :");
+		for (SessionTrace t : live.values()) {
+			if (!programmer.equals(t.owner)) continue;
+			sb.append(System.lineSeparator()).append(String.format(
+					"%d - %s %s (%d s)", t.id, t.service, t.clientAddress,
+					(System.nanoTime() - t.opened) / 1_000_000_000L
+					));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Gets the id of the traced session.
+	 * @return the id of the traced session.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Sets the service serving the session, and the programmer owning it if
+	 * it was installed by a programmer.
+	 * @param service the service.
+	 */
+	void setService(Class<?> service) {
+		this.service = service.getSimpleName();
+		ClassLoader loader = service.getClassLoader();
+		this.owner = loader instanceof ServiceClassLoader ?
+				((ServiceClassLoader) loader).getProgrammer() : null;
+	}
+
+	/**
+	 * Records an event. This method never blocks, and may be called
+	 * concurrently from any thread.
+	 * @param event the kind of the event.
+	 * @param value the size or duration associated to the event.
+	 */
+	void record(String event, long value) {
+		long seq = next.getAndIncrement();
+		entries.set((int) (seq % CAPACITY),
+				new Entry(seq, System.nanoTime(), event, value)
+				);
+	}
+
+	/**
+	 * Builds a String containing the most recent events of this session, in
+	 * the order they were recorded.
+	 * @return the built String
+	 */
+	public String dump() {
+		long last = next.get();
+		StringBuilder sb = new StringBuilder(String.format(
+				"Session %d - %s %s", id, service, clientAddress
+				));
+		for (long seq = Math.max(0, last - CAPACITY); seq < last; seq++) {
+			Entry e = entries.get((int) (seq % CAPACITY));
+			if (e == null || e.seq != seq) continue; // overwritten meanwhile
+			sb.append(System.lineSeparator()).append(String.format(
+					"+%.3f ms %s %d", (e.time - opened) / 1e6, e.event, e.value
+					));
+		}
+		return sb.toString();
+	}
+
+	/** An immutable event of the ring buffer. */
+	private static final class Entry {
+		final long seq;
+		final long time;
+		final String event;
+		final long value;
+
+		Entry(long seq, long time, String event, long value) {
+			this.seq = seq;
+			this.time = time;
+			this.event = event;
+			this.value = value;
+		}
+	}
+}